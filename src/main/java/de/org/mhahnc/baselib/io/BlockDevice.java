@@ -47,6 +47,39 @@ public interface BlockDevice {
      */
     void read (long num, byte[] block, int ofs) throws IOException;
 
+    /**
+     * Writes a range of consecutive blocks to the device. The default
+     * implementation falls back to single block writes, implementations should
+     * override it if they can move multiple blocks at once.
+     * @param first The number of the first block.
+     * @param count Number of blocks to write.
+     * @param buf The buffer holding the data of all of the blocks.
+     * @param ofs Where the data of the first block starts in the buffer.
+     * @throws IOException If any error occurred.
+     */
+    default void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        final int bsz = blockSize();
+        for (int i = 0; i < count; i++, ofs += bsz) {
+            write(first + i, buf, ofs);
+        }
+    }
+
+    /**
+     * Reads a range of consecutive blocks from the device. The default
+     * implementation falls back to single block reads.
+     * @param first The number of the first block.
+     * @param count Number of blocks to read.
+     * @param buf Buffer where to write the data of all of the blocks.
+     * @param ofs Where to start writing the buffer.
+     * @throws IOException If any error occurred.
+     */
+    default void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        final int bsz = blockSize();
+        for (int i = 0; i < count; i++, ofs += bsz) {
+            read(first + i, buf, ofs);
+        }
+    }
+
     /**
      * Closes the block device.
      * @param err True if the stream failed and only cleanup should happen.
@@ -75,6 +108,25 @@ public interface BlockDevice {
          */
         void transform(long num, byte[] block, int ofs) throws IOException;
 
+        /**
+         * Called to handle a run of blocks, which are stored back to back in
+         * the buffer. The default implementation transforms block by block,
+         * filters should override it if they can process multiple blocks more
+         * efficiently at once.
+         * @param nums The (already mapped) numbers of the blocks.
+         * @param count Number of blocks to handle.
+         * @param buf Buffer with the data of all of the blocks.
+         * @param ofs Where the data of the first block starts in the buffer.
+         * @param blockSize Size of a single block in bytes.
+         * @throws IOException If any error occurred.
+         */
+        default void transformBatch(long[] nums, int count,
+                byte[] buf, int ofs, int blockSize) throws IOException {
+            for (int i = 0; i < count; i++, ofs += blockSize) {
+                transform(nums[i], buf, ofs);
+            }
+        }
+
         /** Filter factory definition. */
         interface Factory {
             /**
@@ -3,6 +3,11 @@ package de.org.mhahnc.baselib.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Block device implementations.
@@ -57,6 +62,17 @@ public abstract class BlockDeviceImpl implements BlockDevice {
     protected abstract void internalRead (long num, byte[] block, int ofs) throws IOException;
     protected abstract void internalWrite(long num, byte[] block, int ofs) throws IOException;
 
+    protected void internalReadBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        for (int i = 0; i < count; i++, ofs += this.blockSize) {
+            internalRead(first + i, buf, ofs);
+        }
+    }
+    protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        for (int i = 0; i < count; i++, ofs += this.blockSize) {
+            internalWrite(first + i, buf, ofs);
+        }
+    }
+
     public void read(long num, byte[] block, int ofs) throws IOException {
         if (this.writeOnly) {
             throw new IOException("block device is writeonly");
@@ -87,6 +103,41 @@ public abstract class BlockDeviceImpl implements BlockDevice {
         }
     }
 
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (this.writeOnly) {
+            throw new IOException("block device is writeonly");
+        }
+        if (0 < count) {
+            internalReadBlocks(first, count, buf, ofs);
+        }
+    }
+
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (this.readOnly) {
+            throw new IOException("block device is readonly");
+        }
+        if (0 >= count) {
+            return;
+        }
+        if (first < 0L ||
+            first > this.size - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.size));
+        }
+        if (this.serialWrite) {
+            if (first != this.lastNum + 1) {
+                throw new IOException(String.format(
+                        "illegal seek (%d<>%d)",
+                        first, this.lastNum + 1));
+            }
+        }
+        if (null != buf) {
+            internalWriteBlocks(first, count, buf, ofs);
+            this.lastNum = first + count - 1;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     /**
@@ -116,6 +167,18 @@ public abstract class BlockDeviceImpl implements BlockDevice {
             this.file.seek(num * this.blockSize);
             this.file.write(block, ofs, this.blockSize);
         }
+        protected void internalReadBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            final int len = count * this.blockSize;
+            this.file.seek(first * this.blockSize);
+            if (len != IOUtils.readAll(this.file, buf, ofs, len)) {
+                throw new IOException(String.format(
+                        "reading blocks %d+%d from random access file failed", first, count));
+            }
+        }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            this.file.seek(first * this.blockSize);
+            this.file.write(buf, ofs, count * this.blockSize);
+        }
         public void close(boolean err) throws IOException {
             this.file.close();
         }
@@ -123,36 +186,495 @@ public abstract class BlockDeviceImpl implements BlockDevice {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Block device on top of a file channel, using positional I/O only. There
+     * is no shared file pointer, so blocks can be read and written by multiple
+     * threads at the same time.
+     */
+    public static class ChannelBlockDevice extends BlockDeviceImpl {
+        /** Maximum size of a (direct) transfer buffer. */
+        public final static int MAX_XFERSIZE = 1 << 20;
+
+        final FileChannel channel;
+        final ThreadLocal<ByteBuffer> xbufs;
+
+        /**
+         * Default ctor.
+         * @param channel The channel to access, must be readable and/or
+         * writable according to the desired mode.
+         * @param blockSize The block size.
+         * @param size Number of blocks, -1 to derive it from the channel size.
+         * @param readOnly True for read-only access.
+         * @param writeOnly True for write-only access.
+         * @param direct True to move the data through (per-thread) direct
+         * buffers, false to let the channel deal with the heap arrays.
+         * @throws IOException If any error occurred.
+         */
+        public ChannelBlockDevice(FileChannel channel, int blockSize, long size,
+                boolean readOnly, boolean writeOnly, boolean direct) throws IOException {
+            super(readOnly,
+                  writeOnly,
+                  false,
+                  -1L == size ? (channel.size() / blockSize) : size,
+                  blockSize);
+
+            this.channel = channel;
+
+            final int xsz = Math.max(1, MAX_XFERSIZE / blockSize) * blockSize;
+            this.xbufs = direct ? ThreadLocal.withInitial(() ->
+                ByteBuffer.allocateDirect(xsz)) : null;
+        }
+        protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+            internalReadBlocks(num, 1, block, ofs);
+        }
+        protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+            internalWriteBlocks(num, 1, block, ofs);
+        }
+        protected void internalReadBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            long pos = first * this.blockSize;
+            int  len = count * this.blockSize;
+            if (null == this.xbufs) {
+                read(ByteBuffer.wrap(buf, ofs, len), pos, first, count);
+                return;
+            }
+            final ByteBuffer xbuf = this.xbufs.get();
+            while (0 < len) {
+                final int chunk = Math.min(len, xbuf.capacity());
+                xbuf.clear().limit(chunk);
+                read(xbuf, pos, first, count);
+                xbuf.flip();
+                xbuf.get(buf, ofs, chunk);
+                pos += chunk;
+                ofs += chunk;
+                len -= chunk;
+            }
+        }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            long pos = first * this.blockSize;
+            int  len = count * this.blockSize;
+            if (null == this.xbufs) {
+                write(ByteBuffer.wrap(buf, ofs, len), pos);
+                return;
+            }
+            final ByteBuffer xbuf = this.xbufs.get();
+            while (0 < len) {
+                final int chunk = Math.min(len, xbuf.capacity());
+                xbuf.clear();
+                xbuf.put(buf, ofs, chunk).flip();
+                write(xbuf, pos);
+                pos += chunk;
+                ofs += chunk;
+                len -= chunk;
+            }
+        }
+        void read(ByteBuffer bb, long pos, long first, int count) throws IOException {
+            while (bb.hasRemaining()) {
+                final int read = this.channel.read(bb, pos);
+                if (-1 == read) {
+                    throw new IOException(String.format(
+                            "reading blocks %d+%d from channel failed", first, count));
+                }
+                pos += read;
+            }
+        }
+        void write(ByteBuffer bb, long pos) throws IOException {
+            while (bb.hasRemaining()) {
+                pos += this.channel.write(bb, pos);
+            }
+        }
+        public void close(boolean err) throws IOException {
+            this.channel.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Block device on top of a memory mapped file. The file gets mapped in
+     * segments, so images can go way beyond the 2GB limit of a single buffer.
+     * Segments are mapped on first access and paged in by the OS on demand.
+     * Notice that mappings cannot be released explicitly, they stay until the
+     * buffers got garbage collected.
+     */
+    public static class MappedBlockDevice extends BlockDeviceImpl {
+        public final static int DEFAULT_SEGMENTSIZE = 1 << 30;
+
+        final FileChannel channel;
+        final long        segSize;
+        final long        bytes;
+
+        final AtomicReferenceArray<MappedByteBuffer> segs;
+
+        /**
+         * Ctor using the default segment size.
+         * @see #MappedBlockDevice(FileChannel, int, long, boolean, boolean, int)
+         */
+        public MappedBlockDevice(FileChannel channel, int blockSize, long size,
+                boolean readOnly, boolean writeOnly) throws IOException {
+            this(channel, blockSize, size, readOnly, writeOnly, DEFAULT_SEGMENTSIZE);
+        }
+
+        /**
+         * @param channel The file channel to map. Must be readable and, unless
+         * for read-only access, also writable.
+         * @param blockSize The block size.
+         * @param size Number of blocks, -1 to derive it from the channel size.
+         * If larger than the file the file will grow.
+         * @param readOnly True for read-only access.
+         * @param writeOnly True for write-only access.
+         * @param segmentSize Maximum number of bytes to map at once, will be
+         * aligned down to the block size.
+         * @throws IOException If any error occurred.
+         */
+        public MappedBlockDevice(FileChannel channel, int blockSize, long size,
+                boolean readOnly, boolean writeOnly, int segmentSize) throws IOException {
+            super(readOnly,
+                  writeOnly,
+                  false,
+                  -1L == size ? (channel.size() / blockSize) : size,
+                  blockSize);
+
+            this.channel = channel;
+            this.segSize = Math.max(1, segmentSize / blockSize) * (long)blockSize;
+            this.bytes   = this.size * blockSize;
+
+            final long segs = (this.bytes + this.segSize - 1) / this.segSize;
+            if (segs > Integer.MAX_VALUE) {
+                throw new IOException("too many segments");
+            }
+            this.segs = new AtomicReferenceArray<>((int)segs);
+        }
+
+        MappedByteBuffer segment(int idx) throws IOException {
+            MappedByteBuffer result = this.segs.get(idx);
+            if (null == result) {
+                synchronized(this.segs) {
+                    result = this.segs.get(idx);
+                    if (null == result) {
+                        final long pos = idx * this.segSize;
+                        result = this.channel.map(
+                                this.readOnly ? FileChannel.MapMode.READ_ONLY :
+                                                FileChannel.MapMode.READ_WRITE,
+                                pos,
+                                Math.min(this.segSize, this.bytes - pos));
+                        this.segs.set(idx, result);
+                    }
+                }
+            }
+            return result;
+        }
+
+        long checkRange(long first, int count) throws IOException {
+            if (first < 0L || first > this.size - count) {
+                throw new IOException(String.format(
+                        "illegal range (%d+%d, size=%d)",
+                        first, count, this.size));
+            }
+            return first * this.blockSize;
+        }
+
+        /**
+         * Zero-copy access to a block.
+         * @param num The block number.
+         * @return View of the block's data in the mapping. Read-only if the
+         * device is. Only valid as long as the device hasn't been closed.
+         * @throws IOException If any error occurred.
+         */
+        public ByteBuffer block(long num) throws IOException {
+            if (this.writeOnly) {
+                throw new IOException("block device is writeonly");
+            }
+            final long pos = checkRange(num, 1);
+            return segment((int)(pos / this.segSize)).slice(
+                    (int)(pos % this.segSize), this.blockSize);
+        }
+
+        protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+            internalReadBlocks(num, 1, block, ofs);
+        }
+        protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+            internalWriteBlocks(num, 1, block, ofs);
+        }
+        protected void internalReadBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            long pos = checkRange(first, count);
+            for (int len = count * this.blockSize; 0 < len;) {
+                final int spos  = (int)(pos % this.segSize);
+                final int chunk = (int)Math.min(len, this.segSize - spos);
+                segment((int)(pos / this.segSize)).get(spos, buf, ofs, chunk);
+                pos += chunk;
+                ofs += chunk;
+                len -= chunk;
+            }
+        }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            long pos = checkRange(first, count);
+            for (int len = count * this.blockSize; 0 < len;) {
+                final int spos  = (int)(pos % this.segSize);
+                final int chunk = (int)Math.min(len, this.segSize - spos);
+                segment((int)(pos / this.segSize)).put(spos, buf, ofs, chunk);
+                pos += chunk;
+                ofs += chunk;
+                len -= chunk;
+            }
+        }
+        public void close(boolean err) throws IOException {
+            try {
+                for (int i = 0, c = this.segs.length(); i < c; i++) {
+                    final MappedByteBuffer seg = this.segs.getAndSet(i, null);
+                    if (null != seg && !err && !this.readOnly) {
+                        seg.force();
+                    }
+                }
+            }
+            finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     /**
      * Block device mapped by an output stream. I/O can logically only happen
      * in a serial manner. The size of the device must be defined though.
+     * Blocks get collected in a buffer, so the stream sees large writes only.
+     * Optionally the buffer gets written out by a background thread, while the
+     * next one is filled already.
      */
     public static class OutputStreamBlockDevice extends BlockDeviceImpl {
+        public final static int DEFAULT_BUFSIZE = 1 << 20;
+
         OutputStream os;
         boolean doClose;
 
+        Chunk   cur;
+        Flusher flusher;
+
         public OutputStreamBlockDevice(
                 OutputStream os, long size, int blockSize, boolean doClose) {
+            this(os, size, blockSize, doClose, DEFAULT_BUFSIZE, false);
+        }
+        /**
+         * @param os The stream to write to.
+         * @param size Number of blocks.
+         * @param blockSize Size of a block.
+         * @param doClose True to close the stream when the device gets closed.
+         * @param bufSize Size of the write buffer in bytes, zero to write all
+         * blocks directly to the stream.
+         * @param background True to write out full buffers by a thread.
+         */
+        public OutputStreamBlockDevice(
+                OutputStream os, long size, int blockSize, boolean doClose,
+                int bufSize, boolean background) {
             super(false, true, true, size, blockSize);
 
             this.os      = os;
             this.doClose = doClose;
+
+            if (0 < bufSize) {
+                this.cur = new Chunk(bufSize);
+                if (background) {
+                    this.flusher = new Flusher(os, bufSize);
+                    this.flusher.start();
+                }
+            }
         }
         protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
             if (num >= this.size) {
                 throw new IOException();
             }
-            this.os.write(block, ofs, blockSize());
+            put(block, ofs, blockSize());
+        }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            put(buf, ofs, count * this.blockSize);
         }
         public void internalRead(long num, byte[] block, int ofs) throws IOException {
             throw new IOException();
         }
+
+        void put(byte[] buf, int ofs, int len) throws IOException {
+            if (null != this.flusher) {
+                this.flusher.check();
+            }
+            final Chunk cur = this.cur;
+            if (null == cur) {
+                this.os.write(buf, ofs, len);
+                return;
+            }
+            if (null == this.flusher && len >= cur.data.length) {
+                // too large to be worth buffering
+                drain();
+                this.os.write(buf, ofs, len);
+                return;
+            }
+            while (0 < len) {
+                final int part = Math.min(len, this.cur.data.length - this.cur.len);
+                System.arraycopy(buf, ofs, this.cur.data, this.cur.len, part);
+                this.cur.len += part;
+                ofs += part;
+                len -= part;
+                if (this.cur.len == this.cur.data.length) {
+                    drain();
+                }
+            }
+        }
+
+        /** Writes out or hands over the current buffer. */
+        void drain() throws IOException {
+            if (0 == this.cur.len) {
+                return;
+            }
+            if (null == this.flusher) {
+                this.os.write(this.cur.data, 0, this.cur.len);
+                this.cur.len = 0;
+            }
+            else {
+                this.cur = this.flusher.exchange(this.cur);
+            }
+        }
+
+        /**
+         * Writes out all of the buffered data and flushes the stream.
+         * @throws IOException If any error occurred.
+         */
+        public void flush() throws IOException {
+            if (null != this.cur) {
+                drain();
+                if (null != this.flusher) {
+                    this.flusher.sync();
+                }
+            }
+            this.os.flush();
+        }
+
         public void close(boolean err) throws IOException {
             if (null != this.os) {
-                if (this.doClose) {
-                    this.os.close();
+                try {
+                    if (!err && null != this.cur) {
+                        drain();
+                    }
+                }
+                finally {
+                    try {
+                        if (null != this.flusher) {
+                            this.flusher.end(err);
+                        }
+                    }
+                    finally {
+                        this.flusher = null;
+                        if (this.doClose) {
+                            this.os.close();
+                        }
+                        else if (!err) {
+                            this.os.flush();
+                        }
+                        this.os = null;
+                    }
+                }
+            }
+        }
+
+        static class Chunk {
+            final byte[] data;
+            int len;
+
+            Chunk(int sz) {
+                this.data = new byte[sz];
+            }
+        }
+
+        /**
+         * Writes out full buffers in the background. There are two buffers,
+         * one is being filled, the other one written.
+         */
+        static class Flusher extends Thread {
+            final static Chunk END = new Chunk(0);
+
+            final OutputStream os;
+            final ArrayBlockingQueue<Chunk> full = new ArrayBlockingQueue<>(2);
+            final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(2);
+
+            volatile IOException err;
+            volatile boolean     discard;
+
+            Flusher(OutputStream os, int bufSize) {
+                super("OSBD.Flusher");
+                setDaemon(true);
+                this.os = os;
+                this.free.add(new Chunk(bufSize));
+            }
+
+            public void run() {
+                for (;;) {
+                    final Chunk chunk;
+                    try {
+                        chunk = this.full.take();
+                    }
+                    catch (InterruptedException ire) {
+                        this.err = new IOException(ire);
+                        return;
+                    }
+                    if (END == chunk) {
+                        return;
+                    }
+                    if (null == this.err && !this.discard) {
+                        try {
+                            this.os.write(chunk.data, 0, chunk.len);
+                        }
+                        catch (IOException ioe) {
+                            this.err = ioe;
+                        }
+                        catch (RuntimeException re) {
+                            this.err = new IOException(re);
+                        }
+                    }
+                    chunk.len = 0;
+                    this.free.add(chunk);
+                }
+            }
+
+            void check() throws IOException {
+                final IOException err = this.err;
+                if (null != err) {
+                    throw err;
+                }
+            }
+
+            Chunk exchange(Chunk chunk) throws IOException {
+                try {
+                    this.full.put(chunk);
+                    final Chunk result = this.free.take();
+                    check();
+                    return result;
+                }
+                catch (InterruptedException ire) {
+                    throw new IOException(ire);
+                }
+            }
+
+            /** Waits for the other buffer to be written out. */
+            void sync() throws IOException {
+                try {
+                    this.free.put(this.free.take());
+                }
+                catch (InterruptedException ire) {
+                    throw new IOException(ire);
+                }
+                check();
+            }
+
+            void end(boolean err) throws IOException {
+                this.discard = err;
+                try {
+                    this.full.put(END);
+                    join();
+                }
+                catch (InterruptedException ire) {
+                    throw new IOException(ire);
+                }
+                if (!err) {
+                    check();
                 }
-                this.os = null;
             }
         }
     }
@@ -189,6 +711,12 @@ public abstract class BlockDeviceImpl implements BlockDevice {
         protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
             System.arraycopy(block, ofs, this.buf, numToOfs(num), this.blockSize);
         }
+        protected void internalReadBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            System.arraycopy(this.buf, numToOfs(first), buf, ofs, count * this.blockSize);
+        }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            System.arraycopy(buf, ofs, this.buf, numToOfs(first), count * this.blockSize);
+        }
         public void close(boolean err) {
         }
         public byte[] buffer() {
@@ -218,6 +746,8 @@ public abstract class BlockDeviceImpl implements BlockDevice {
         }
         protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
         }
+        protected void internalWriteBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        }
         public void close(boolean err) {
         }
     }
@@ -264,6 +794,22 @@ public abstract class BlockDeviceImpl implements BlockDevice {
         public boolean writeOnly() {
             return this.bdev.writeOnly();
         }
+        public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (!onRead(first + i)) {
+                    throw new AbortException();
+                }
+            }
+            this.bdev.readBlocks(first, count, buf, ofs);
+        }
+        public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (!onWrite(first + i)) {
+                    throw new AbortException();
+                }
+            }
+            this.bdev.writeBlocks(first, count, buf, ofs);
+        }
         public void close(boolean err) throws IOException {
             this.bdev.close(err);
         }
@@ -1,18 +1,42 @@
 package de.org.mhahnc.baselib.io;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import de.org.mhahnc.baselib.io.BlockDeviceReader.Exception.Code;
+import de.org.mhahnc.baselib.io.BlockDeviceReader.Progress.Result;
 import de.org.mhahnc.baselib.util.Prp;
 
 public abstract class BlockDeviceReader {
     protected static class Props {
         public static final String PFX = "baselib.reader.";
         public static final Prp.Bool SETTSTAMPERRS = new Prp.Bool(PFX + "settstamperrs", true);
+        /** Number of threads writing file data, 1 for strictly sequential
+         * extraction. Device reads still get serialized, it is the writing
+         * to the local files which happens in parallel. Progress stays in
+         * order and on the extracting thread. */
+        public static final Prp.Int  THREADS       = new Prp.Int (PFX + "threads"      , 1);
     }
 
     public interface Progress {
@@ -69,6 +93,94 @@ public abstract class BlockDeviceReader {
 
     public abstract void extract(File toDir, Progress progress) throws IOException;
 
+    /**
+     * Receives extracted content, instead of it being written to local files.
+     * Paths are relative, with '/' as the separator, and parent directories
+     * always come before their entries.
+     */
+    public interface Sink {
+        void directory(String path, Long tstamp) throws IOException;
+        /**
+         * @return Stream to write the file's data to. It gets closed after
+         * all of the data got written.
+         */
+        OutputStream file(String path, long size, long tstamp) throws IOException;
+    }
+
+    /**
+     * Extracts everything into a sink. No local files get created, and the
+     * data gets written sequentially, no matter how many threads might be
+     * configured.
+     * @param sink Where the content goes to.
+     * @param progress The progress callback.
+     * @throws IOException If any error occurred.
+     */
+    public void extract(Sink sink, Progress progress) throws IOException {
+        this.sink = sink;
+        try {
+            extract(SINK_ROOT, progress);
+        }
+        finally {
+            this.sink = null;
+        }
+    }
+
+    final static File SINK_ROOT = new File(".");
+
+    Sink sink;
+
+    String sinkPath(File obj) {
+        final String result = SINK_ROOT.toPath().relativize(obj.toPath()).toString();
+        return '/' == File.separatorChar ? result :
+                      result.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Sink writing a ZIP archive.
+     */
+    public static class ZipSink implements Sink {
+        final ZipOutputStream zos;
+
+        public ZipSink(OutputStream os) {
+            this.zos = new ZipOutputStream(os);
+        }
+
+        public void directory(String path, Long tstamp) throws IOException {
+            final ZipEntry ze = new ZipEntry(path + "/");
+            if (null != tstamp) {
+                ze.setLastModifiedTime(FileTime.fromMillis(tstamp));
+            }
+            this.zos.putNextEntry(ze);
+            this.zos.closeEntry();
+        }
+
+        public OutputStream file(String path, long size, long tstamp) throws IOException {
+            final ZipEntry ze = new ZipEntry(path);
+            ze.setLastModifiedTime(FileTime.fromMillis(tstamp));
+            this.zos.putNextEntry(ze);
+            return new FilterOutputStream(this.zos) {
+                boolean closed;
+                public void write(byte[] buf, int ofs, int len) throws IOException {
+                    this.out.write(buf, ofs, len);
+                }
+                public void close() throws IOException {
+                    if (!this.closed) {
+                        this.closed = true;
+                        ZipSink.this.zos.closeEntry();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Finishes the archive and closes the underlying stream.
+         * @throws IOException If any error occurred.
+         */
+        public void close() throws IOException {
+            this.zos.close();
+        }
+    }
+
     public static class Exception extends IOException {
         private static final long serialVersionUID = -6227857991418114812L;
         public enum Code {
@@ -98,19 +210,184 @@ public abstract class BlockDeviceReader {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Score of a probe, if the reader has no idea whether it can deal with the
+     * device or not. Readers knowing for sure return higher values, or zero if
+     * it is definitely not something they can handle.
+     */
+    public static final int PROBE_UNKNOWN = 1;
+
+    /**
+     * Checks whether the device looks like something this reader can handle,
+     * without mounting it. Might get called concurrently with other readers.
+     * @param header View of the device to probe, with the first blocks cached.
+     * @return The score, zero for no match at all, PROBE_UNKNOWN if it cannot
+     * be told (the default), anything higher for more certain matches.
+     * @throws IOException If any error occurred, counting as no match.
+     */
+    public int probe(BlockDevice header) throws IOException {
+        return PROBE_UNKNOWN;
+    }
+
+    /**
+     * Read-only view of a device with its first blocks read once, so multiple
+     * probes can look at them without hitting the device again.
+     */
+    static class HeaderCache implements BlockDevice {
+        final BlockDevice bdev;
+        final byte[]      head;
+        final int         blocks;
+
+        HeaderCache(BlockDevice bdev, int blocks) throws IOException {
+            this.bdev   = bdev;
+            this.blocks = (int)Math.min(blocks, bdev.size());
+            this.head   = new byte[this.blocks * bdev.blockSize()];
+            bdev.readBlocks(0L, this.blocks, this.head, 0);
+        }
+
+        public int     blockSize()   { return this.bdev.blockSize(); }
+        public boolean readOnly()    { return true; }
+        public boolean serialWrite() { return false; }
+        public long    size()        { return this.bdev.size(); }
+        public boolean writeOnly()   { return false; }
+
+        public void read(long num, byte[] block, int ofs) throws IOException {
+            readBlocks(num, 1, block, ofs);
+        }
+
+        public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            final int bsz = this.bdev.blockSize();
+            if (0L <= first && first + count <= this.blocks) {
+                System.arraycopy(this.head, (int)first * bsz, buf, ofs, count * bsz);
+                return;
+            }
+            synchronized(this.bdev) {
+                this.bdev.readBlocks(first, count, buf, ofs);
+            }
+        }
+
+        public void write(long num, byte[] block, int ofs) throws IOException {
+            throw new IOException("block device is readonly");
+        }
+
+        public void close(boolean err) {
+        }
+    }
+
+    /**
+     * View of a device serializing all of the access to it, for the time of a
+     * parallel extraction, since the devices are not meant to be used by more
+     * than one thread at a time. It replaces the bdev field, so it only covers
+     * access through that field.
+     */
+    static class SyncDevice implements BlockDevice {
+        final BlockDevice bdev;
+
+        SyncDevice(BlockDevice bdev) {
+            this.bdev = bdev;
+        }
+
+        public int     blockSize()   { return this.bdev.blockSize(); }
+        public boolean readOnly()    { return this.bdev.readOnly(); }
+        public boolean serialWrite() { return this.bdev.serialWrite(); }
+        public long    size()        { return this.bdev.size(); }
+        public boolean writeOnly()   { return this.bdev.writeOnly(); }
+
+        public void read(long num, byte[] block, int ofs) throws IOException {
+            synchronized(this.bdev) {
+                this.bdev.read(num, block, ofs);
+            }
+        }
+
+        public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            synchronized(this.bdev) {
+                this.bdev.readBlocks(first, count, buf, ofs);
+            }
+        }
+
+        public void write(long num, byte[] block, int ofs) throws IOException {
+            synchronized(this.bdev) {
+                this.bdev.write(num, block, ofs);
+            }
+        }
+
+        public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            synchronized(this.bdev) {
+                this.bdev.writeBlocks(first, count, buf, ofs);
+            }
+        }
+
+        public void close(boolean err) throws IOException {
+            synchronized(this.bdev) {
+                this.bdev.close(err);
+            }
+        }
+    }
+
+    /**
+     * Reader trying out multiple other readers. Before any extraction the
+     * readers implementing probe() get probed concurrently, on the cached
+     * header blocks of their devices. The one with the highest score gets
+     * tried first; readers which ruled themselves out don't get tried at all.
+     */
     public static class Multiple extends BlockDeviceReader {
         final BlockDeviceReader[] readers;
+        /** Which of the readers implement probe(). */
+        final boolean[] probing;
+
+        /** Number of blocks to read for probing. */
+        public static final Prp.Int PROBE_BLOCKS = new Prp.Int(Props.PFX + "probeblocks", 64);
 
         public Multiple(BlockDeviceReader[] readers) {
-            super(null, null);
+            this(readers, null);
+        }
+
+        public Multiple(BlockDeviceReader[] readers, Properties props) {
+            super(null, props);
             this.readers = readers;
+            this.probing = new boolean[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                try {
+                    this.probing[i] = BlockDeviceReader.class != readers[i].getClass()
+                            .getMethod("probe", BlockDevice.class).getDeclaringClass();
+                }
+                catch (NoSuchMethodException nsme) {
+                    this.probing[i] = false;
+                }
+            }
+        }
+
+        /** Runs the probes, shared by all instances, idle threads go away. */
+        static ExecutorService probePool;
+
+        static synchronized ExecutorService probePool() {
+            if (null == probePool) {
+                probePool = Executors.newCachedThreadPool(r -> {
+                    final Thread result = new Thread(r, "BDR.Probe");
+                    result.setDaemon(true);
+                    return result;
+                });
+            }
+            return probePool;
+        }
+
+        interface Attempt {
+            void run(BlockDeviceReader rdr) throws IOException;
         }
 
         public void extract(File toDir, Progress progress) throws IOException {
+            attempt(rdr -> rdr.extract(toDir, progress));
+        }
+
+        public void extract(Sink sink, Progress progress) throws IOException {
+            attempt(rdr -> rdr.extract(sink, progress));
+        }
+
+        void attempt(Attempt att) throws IOException {
             MountException me = null;
-            for (BlockDeviceReader rdr : this.readers) {
+            for (BlockDeviceReader rdr : rank()) {
                 try {
-                    rdr.extract(toDir, progress);
+                    att.run(rdr);
                     return;
                 }
                 catch (MountException me2) {
@@ -118,16 +395,147 @@ public abstract class BlockDeviceReader {
                     continue;
                 }
             }
-            throw me;
+            throw null == me ? new MountException("no matching reader") : me;
+        }
+
+        /** @return The readers worth trying, the best matches first. */
+        BlockDeviceReader[] rank() throws IOException {
+            final int n = this.readers.length;
+            final int blocks = null == this.props ? PROBE_BLOCKS.dflt() :
+                                                    PROBE_BLOCKS.get(this.props);
+
+            // every device gets its header read just once, and only if there
+            // is anyone to look at it
+            final IdentityHashMap<BlockDevice, HeaderCache> caches = new IdentityHashMap<>();
+            final ArrayList<Integer> probed = new ArrayList<>();
+            final HeaderCache[] hdrs = new HeaderCache[n];
+            final int[] scores = new int[n];
+            for (int i = 0; i < n; i++) {
+                scores[i] = PROBE_UNKNOWN;
+                final BlockDevice bdev = this.readers[i].bdev;
+                if (!this.probing[i] || null == bdev || bdev.writeOnly()) {
+                    continue;
+                }
+                HeaderCache hc = caches.get(bdev);
+                if (null == hc) {
+                    caches.put(bdev, hc = new HeaderCache(bdev, blocks));
+                }
+                hdrs[i] = hc;
+                probed.add(i);
+            }
+
+            final ArrayList<Future<?>> probes = new ArrayList<>();
+            for (int i = 0; i < probed.size(); i++) {
+                final int ri = probed.get(i);
+                final Runnable probe = () -> {
+                    try {
+                        scores[ri] = Math.max(0, this.readers[ri].probe(hdrs[ri]));
+                    }
+                    catch (IOException | RuntimeException e) {
+                        scores[ri] = 0;
+                    }
+                };
+                // the last one runs on the caller's thread
+                if (i < probed.size() - 1) {
+                    probes.add(probePool().submit(probe));
+                }
+                else {
+                    probe.run();
+                }
+            }
+            for (Future<?> probe : probes) {
+                try {
+                    probe.get();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            // stable, so equal scores keep the original order
+            final Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (i0, i1) -> Integer.compare(scores[i1], scores[i0]));
+            final ArrayList<BlockDeviceReader> result = new ArrayList<>();
+            for (int i : order) {
+                if (0 < scores[i]) {
+                    result.add(this.readers[i]);
+                }
+            }
+            return result.toArray(new BlockDeviceReader[result.size()]);
         }
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Writes a file's data. If more than one thread got configured (see
+     * Props.THREADS) and the file gets written as part of a directory, the
+     * actual writing happens in the background while the caller moves on. In
+     * such a case writeData() runs on a worker thread, concurrently with other
+     * instances, so every file needs its own instance. Reading from the device
+     * is safe, since it gets serialized for the time of the extraction, but it
+     * must be accessed through the bdev field, references to it obtained
+     * before the extraction are not covered. Any other state shared between
+     * files must be guarded by the implementation. Progress from within
+     * writeData() has to be reported through progress(): the calls then get
+     * delivered on the caller's thread, in the order the files were written
+     * in, each file's calls right before its done notification. If extracting
+     * into a sink the data goes there instead.
+     */
     protected abstract class LocalFile {
+        Progress progress;
+
         protected abstract void writeData(OutputStream os, long size) throws IOException;
 
+        /**
+         * @return Where to report progress from within writeData() to. If the
+         * data gets written in the background this is a proxy, queuing the
+         * calls for the caller's thread and answering them with OK (or ABORT
+         * if the extraction is stopping). A result of ABORT from the actual
+         * progress then stops the extraction once it gets delivered.
+         */
+        protected Progress progress() {
+            return this.progress;
+        }
+
         public void write(File fl, long size, long tstamp, Progress progress) throws IOException {
+            this.progress = progress;
+            final Sink sink = BlockDeviceReader.this.sink;
+            if (null != sink) {
+                writeSink(sink, fl, size, tstamp);
+                done(progress, size);
+                return;
+            }
+            final Extraction ex = BlockDeviceReader.this.extraction;
+            if (null != ex) {
+                ex.submit(this, fl, size, tstamp, progress);
+                return;
+            }
+            writeFile(fl, size, tstamp);
+            if (0 == BlockDeviceReader.this.depth) {
+                BlockDeviceReader.this.flushTimestamps();
+            }
+            done(progress, size);
+        }
+
+        void writeSink(Sink sink, File fl, long size, long tstamp) throws IOException {
+            OutputStream os = null;
+            try {
+                os = sink.file(sinkPath(fl), size, tstamp);
+                writeData(os, size);
+                os.close();
+            }
+            catch (IOException ioe) {
+                throw ioe instanceof Exception ? ioe :
+                    new Exception(null == os ? Code.ERR_OPEN : Code.ERR_IO,
+                                  fl, "file write error (%s)", ioe.getMessage());
+            }
+        }
+
+        void writeFile(File fl, long size, long tstamp) throws IOException {
             RandomAccessFile raf = null;
             IOException ioerr = null;
             OutputStream os = null;
@@ -156,14 +564,15 @@ public abstract class BlockDeviceReader {
                     fl.delete();
                 }
             }
-            if (!BlockDeviceReader.this.setTimestamp(fl, tstamp)) {
-                throw new Exception(Code.ERR_IO, fl, "cannot restore timestamp");
-            }
-            if (progress instanceof BlockDeviceReader.Progress2) {
-                switch(((BlockDeviceReader.Progress2)progress).onDone(size)) {
-                    case ABORT: throwAbort();
-                    default   : break;
-                }
+            BlockDeviceReader.this.setTimestamp(fl, tstamp, false);
+        }
+    }
+
+    static void done(Progress progress, long size) throws Exception {
+        if (progress instanceof BlockDeviceReader.Progress2) {
+            switch(((BlockDeviceReader.Progress2)progress).onDone(size)) {
+                case ABORT: throwAbort();
+                default   : break;
             }
         }
     }
@@ -172,36 +581,357 @@ public abstract class BlockDeviceReader {
         public abstract void writeEntries() throws IOException;
 
         public void write(File dir, Long timeStamp) throws IOException {
-            boolean setTimeStamp = null != timeStamp && dir.mkdir();
-            if (!setTimeStamp) {
-                if (!dir.exists()) {
-                    throw new Exception(Code.ERR_MKDIR, dir, "cannot create directory");
+            final BlockDeviceReader rdr = BlockDeviceReader.this;
+            if (null != rdr.sink) {
+                // the root is the sink itself
+                if (0 < rdr.depth++) {
+                    rdr.sink.directory(rdr.sinkPath(dir), timeStamp);
+                }
+                try {
+                    writeEntries();
+                }
+                finally {
+                    rdr.depth--;
                 }
+                return;
             }
-            writeEntries();
-            if (setTimeStamp) {
-                if (!BlockDeviceReader.this.setTimestamp(dir, timeStamp)) {
-                    throw new Exception(Code.ERR_MKDIR, dir, "cannot set directory timestamp");
+            final boolean top = 0 == rdr.depth++;
+            if (top) {
+                final int threads = null == rdr.props ? 1 :
+                                    Props.THREADS.get(rdr.props);
+                if (1 < threads) {
+                    rdr.extraction = rdr.new Extraction(threads);
+                    if (null != rdr.bdev) {
+                        rdr.bdev = new SyncDevice(rdr.bdev);
+                    }
+                }
+            }
+            try {
+                boolean setTimeStamp = null != timeStamp && dir.mkdir();
+                if (!setTimeStamp) {
+                    if (!dir.exists()) {
+                        throw new Exception(Code.ERR_MKDIR, dir, "cannot create directory");
+                    }
+                }
+                writeEntries();
+                if (setTimeStamp) {
+                    if (null != rdr.extraction) {
+                        // files might still get written into it
+                        rdr.extraction.dirStamps.add(new Stamp(dir, timeStamp, true));
+                    }
+                    else {
+                        rdr.setTimestamp(dir, timeStamp, true);
+                    }
+                }
+                if (top) {
+                    if (null != rdr.extraction) {
+                        rdr.extraction.finish();
+                    }
+                    rdr.flushTimestamps();
+                }
+            }
+            finally {
+                rdr.depth--;
+                if (top) {
+                    if (null != rdr.extraction) {
+                        rdr.extraction.shutdown();
+                        rdr.extraction = null;
+                        if (rdr.bdev instanceof SyncDevice sdev) {
+                            rdr.bdev = sdev.bdev;
+                        }
+                    }
+                    synchronized(rdr.stamps) {
+                        rdr.stamps.clear();
+                    }
                 }
             }
         }
     }
 
-    boolean setTimestamp(File obj, long tstamp) {
-        for (Integer sleep : new Integer[] { null, // shared access violation workaround (Windows)
-                1, 5, 10, 50, 100, 200, 500, 1000, 2000 }) {
-            if (null != sleep) {
+    ///////////////////////////////////////////////////////////////////////////
+
+    Extraction extraction;
+
+    /**
+     * State of a parallel extraction. The directory skeleton gets created by
+     * the walking thread as usual, while the file data gets written by a pool
+     * of workers. The number of files in flight is bounded, so the walk cannot
+     * run away from the writers. Progress reported by the workers gets queued
+     * per file and replayed by the walking thread, oldest file first. Directory
+     * timestamps get applied at the very end, since their contents might have
+     * been still in the works.
+     */
+    class Extraction {
+        final ExecutorService pool;
+        final int maxPending;
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        final ArrayList<Stamp> dirStamps = new ArrayList<>();
+        volatile boolean abort;
+
+        Extraction(int threads) {
+            this.pool = Executors.newFixedThreadPool(threads, r -> {
+                final Thread result = new Thread(r, "BDR.Writer");
+                result.setDaemon(true);
+                return result;
+            });
+            this.maxPending = threads << 1;
+        }
+
+        /** Progress call made by a worker, to be replayed on the real one. */
+        interface Call {
+            Result apply(Progress progress);
+        }
+
+        /** Marks the end of a file's progress calls. */
+        final static Call END = progress -> null;
+
+        /** Progress proxy handed out to a file written in the background. */
+        class Deferred implements Progress {
+            final LinkedBlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+            boolean ended;
+
+            Result queue(Call call) {
+                this.calls.add(call);
+                return Extraction.this.abort ? Result.ABORT : Result.OK;
+            }
+
+            public Result onMounting (int numOfObjects             ) { return queue(p -> p.onMounting (numOfObjects         )); }
+            public Result onMount    (int numOfFiles, int numOfDirs) { return queue(p -> p.onMount    (numOfFiles, numOfDirs)); }
+            public Result onDirectory(File dir, long size, Long ts ) { return queue(p -> p.onDirectory(dir, size, ts        )); }
+            public Result onFile     (File fl , long size, Long ts ) { return queue(p -> p.onFile     (fl , size, ts        )); }
+            public Result onData     (long written                 ) { return queue(p -> p.onData     (written              )); }
+        }
+
+        class Pending implements Runnable {
+            final LocalFile lfl;
+            final File      fl;
+            final long      size;
+            final long      tstamp;
+            final Progress  progress;
+            final Deferred  deferred = new Deferred();
+            final CountDownLatch done = new CountDownLatch(1);
+            IOException err;
+
+            Pending(LocalFile lfl, File fl, long size, long tstamp, Progress progress) {
+                this.lfl      = lfl;
+                this.fl       = fl;
+                this.size     = size;
+                this.tstamp   = tstamp;
+                this.progress = progress;
+            }
+
+            public void run() {
                 try {
-                    Thread.sleep(sleep);
+                    if (!Extraction.this.abort) {
+                        this.lfl.writeFile(this.fl, this.size, this.tstamp);
+                    }
+                }
+                catch (IOException ioe) {
+                    this.err = ioe;
+                }
+                catch (RuntimeException re) {
+                    this.err = new Exception(Code.ERR_IO, this.fl, "file write error (%s)", re.getMessage());
+                }
+                finally {
+                    this.deferred.calls.add(END);
+                    this.done.countDown();
+                }
+            }
+
+            /**
+             * Delivers the progress calls made so far to the real progress.
+             * @param all True to wait for the file to complete and deliver all
+             * of its calls.
+             * @throws IOException If the progress asked for an abort.
+             */
+            void replay(boolean all) throws IOException {
+                final Deferred dfr = this.deferred;
+                while (!dfr.ended) {
+                    final Call call;
+                    try {
+                        call = all ? dfr.calls.take() : dfr.calls.poll();
+                    }
+                    catch (InterruptedException ire) {
+                        throw new Exception(Code.ERR_IO, this.fl, "interrupted");
+                    }
+                    if (null == call) {
+                        return;
+                    }
+                    if (END == call) {
+                        dfr.ended = true;
+                    }
+                    else if (null != this.progress &&
+                             Result.ABORT == call.apply(this.progress)) {
+                        throwAbort();
+                    }
+                }
+            }
+
+            void await() throws IOException {
+                try {
+                    this.done.await();
                 }
                 catch (InterruptedException ire) {
-                    return false;
+                    throw new Exception(Code.ERR_IO, this.fl, "interrupted");
                 }
             }
-            if (obj.setLastModified(tstamp)) {
-                return true;
+        }
+
+        void submit(LocalFile lfl, File fl, long size, long tstamp, Progress progress) throws IOException {
+            reap(this.maxPending - 1);
+            final Pending pnd = new Pending(lfl, fl, size, tstamp, progress);
+            lfl.progress = null == progress ? null : pnd.deferred;
+            this.pending.addLast(pnd);
+            try {
+                this.pool.execute(pnd);
+            }
+            catch (RejectedExecutionException ree) {
+                pnd.run();
+            }
+        }
+
+        /**
+         * Completes the oldest files, until no more than the given number is
+         * pending. Files done already get completed in any case.
+         */
+        void reap(int max) throws IOException {
+            for (;;) {
+                final Pending head = this.pending.peekFirst();
+                if (null == head) {
+                    return;
+                }
+                try {
+                    if (this.pending.size() <= max && 0 != head.done.getCount()) {
+                        head.replay(false);
+                        return;
+                    }
+                    head.replay(true);
+                }
+                catch (Exception ex) {
+                    this.abort = true;
+                    throw ex;
+                }
+                head.await();
+                this.pending.removeFirst();
+                if (null != head.err) {
+                    this.abort = true;
+                    throw head.err;
+                }
+                try {
+                    done(head.progress, head.size);
+                }
+                catch (Exception ex) {
+                    this.abort = true;
+                    throw ex;
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            reap(0);
+            for (Stamp ds : this.dirStamps) {
+                setTimestamp(ds.obj, ds.tstamp, ds.dir);
+            }
+        }
+
+        /** Stops all of the work still pending and waits for it to end. */
+        void shutdown() {
+            this.abort = true;
+            this.pool.shutdown();
+            for (Pending pnd : this.pending) {
+                try {
+                    pnd.await();
+                }
+                catch (IOException ignored) {
+                }
             }
+            this.pending.clear();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Nesting level of directories currently written. */
+    int depth;
+
+    /** Timestamps which could not be set right away, to be retried. */
+    final ArrayList<Stamp> stamps = new ArrayList<>();
+
+    static class Stamp {
+        final File    obj;
+        final long    tstamp;
+        final boolean dir;
+        Stamp(File obj, long tstamp, boolean dir) {
+            this.obj    = obj;
+            this.tstamp = tstamp;
+            this.dir    = dir;
+        }
+    }
+
+    final static int[] STAMP_RETRY_SLEEPS = { 1, 5, 10, 50, 100, 200, 500, 1000, 2000 };
+
+    /**
+     * Tries to set the timestamp of a file or directory. If this fails it
+     * gets retried later, by flushTimestamps(), so the caller won't stall.
+     */
+    void setTimestamp(File obj, long tstamp, boolean dir) {
+        if (!applyTimestamp(obj, tstamp)) {
+            synchronized(this.stamps) {
+                this.stamps.add(new Stamp(obj, tstamp, dir));
+            }
+        }
+    }
+
+    boolean applyTimestamp(File obj, long tstamp) {
+        try {
+            final BasicFileAttributeView bfav = Files.getFileAttributeView(
+                    obj.toPath(), BasicFileAttributeView.class);
+            if (null == bfav) {
+                return false;
+            }
+            bfav.setTimes(FileTime.fromMillis(tstamp), null, null);
+            return true;
+        }
+        catch (IOException | InvalidPathException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retries setting all of the timestamps which failed so far, as a batch
+     * with increasing delays in between (shared access violations, as they
+     * happen on Windows, usually go away after a while).
+     * @throws Exception If a timestamp still could not be set and such errors
+     * are not to be ignored (see Props.SETTSTAMPERRS).
+     */
+    void flushTimestamps() throws Exception {
+        final ArrayList<Stamp> batch;
+        synchronized(this.stamps) {
+            if (this.stamps.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(this.stamps);
+            this.stamps.clear();
+        }
+        for (int sleep : STAMP_RETRY_SLEEPS) {
+            try {
+                Thread.sleep(sleep);
+            }
+            catch (InterruptedException ire) {
+                break;
+            }
+            batch.removeIf(stamp -> applyTimestamp(stamp.obj, stamp.tstamp));
+            if (batch.isEmpty()) {
+                return;
+            }
+        }
+        if (Props.SETTSTAMPERRS.get(this.props)) {
+            return;
+        }
+        final Stamp stamp = batch.get(0);
+        if (stamp.dir) {
+            throw new Exception(Code.ERR_MKDIR, stamp.obj, "cannot set directory timestamp");
         }
-        return Props.SETTSTAMPERRS.get(this.props);
+        throw new Exception(Code.ERR_IO, stamp.obj, "cannot restore timestamp");
     }
 }
@@ -0,0 +1,371 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Block device layer which keeps recently used blocks in memory, so repeated
+ * reads of the same blocks (e.g. file system metadata) do not hit the
+ * underlying device again. The cache is split into segments, each with a lock
+ * of its own, thus concurrent readers only contend if they happen to access the
+ * same segment. Calls into the underlying device get serialized, so it does not
+ * need to be thread-safe itself.
+ */
+public class CachingBlockDevice implements BlockDevice {
+    /** How to determine which block to drop if the cache is full. */
+    public enum Policy {
+        /** Drop the block which got accessed the longest time ago. */
+        LRU,
+        /** Second-chance approximation of LRU, cheaper on hits. */
+        CLOCK
+    }
+
+    public final static int MAX_SEGMENTS = 16;
+
+    BlockDevice bdev;
+
+    final int       bsz;
+    final boolean   writeBack;
+    final Segment[] segs;
+    final Object    io = new Object();
+
+    final LongAdder hits       = new LongAdder();
+    final LongAdder misses     = new LongAdder();
+    final LongAdder evictions  = new LongAdder();
+    final LongAdder writeBacks = new LongAdder();
+
+    /**
+     * Snapshot of the cache counters.
+     */
+    public static class Stats {
+        /** Number of reads which got served from the cache. */
+        public final long hits;
+        /** Number of reads which needed to go to the device. */
+        public final long misses;
+        /** Number of blocks dropped to make room for others. */
+        public final long evictions;
+        /** Number of dirty blocks written out to the device. */
+        public final long writeBacks;
+
+        Stats(long hits, long misses, long evictions, long writeBacks) {
+            this.hits       = hits;
+            this.misses     = misses;
+            this.evictions  = evictions;
+            this.writeBacks = writeBacks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, evictions=%d, writebacks=%d",
+                    this.hits, this.misses, this.evictions, this.writeBacks);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default ctor.
+     * @param bdev The block device to cache.
+     * @param capacity Maximum number of blocks to keep in memory.
+     * @param policy The eviction policy.
+     * @param writeBack True to keep written blocks in the cache only, until
+     * they get evicted or flushed. False to write them through immediately.
+     */
+    public CachingBlockDevice(BlockDevice bdev, int capacity,
+                              Policy policy, boolean writeBack) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal capacity (%d)", capacity));
+        }
+        if (bdev.writeOnly() || bdev.serialWrite()) {
+            throw new IllegalArgumentException("cannot cache write-only or serial devices");
+        }
+        this.bdev      = bdev;
+        this.bsz       = bdev.blockSize();
+        this.writeBack = writeBack;
+
+        int scount = 1;
+        while (scount < MAX_SEGMENTS && scount << 1 <= capacity) {
+            scount <<= 1;
+        }
+        this.segs = new Segment[scount];
+        for (int i = 0; i < scount; i++) {
+            this.segs[i] = new Segment(capacity / scount +
+                                       (i < capacity % scount ? 1 : 0),
+                                       policy);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        return this.bdev.readOnly();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.bdev.size();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        return false;
+    }
+
+    /** @return The current cache counters. */
+    public Stats stats() {
+        return new Stats(this.hits      .sum(),
+                         this.misses    .sum(),
+                         this.evictions .sum(),
+                         this.writeBacks.sum());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    Segment segment(long num) {
+        return this.segs[(int)((num * 0x9e3779b97f4a7c15L) >>> 32) & (this.segs.length - 1)];
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        segment(num).read(num, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        if (this.bdev.readOnly()) {
+            throw new IOException("block device is readonly");
+        }
+        if (num >= this.bdev.size() ||
+            num < 0L) {
+            throw new IOException(String.format(
+                    "illegal number (%d, size=%d)",
+                    num, this.bdev.size()));
+        }
+        segment(num).write(num, block, ofs);
+    }
+
+    /**
+     * Writes all of the dirty blocks to the underlying device.
+     * @throws IOException If any error occurred.
+     */
+    public void flush() throws IOException {
+        for (Segment seg : this.segs) {
+            seg.flush();
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (null == this.bdev) {
+            return;
+        }
+        try {
+            if (!err) {
+                flush();
+            }
+        }
+        catch (IOException ioe) {
+            err = true;
+            throw ioe;
+        }
+        finally {
+            final BlockDevice bdev = this.bdev;
+            this.bdev = null;
+            bdev.close(err);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    final static int NIL = -1;
+
+    final class Segment {
+        final Policy policy;
+
+        final byte[]    data;
+        final long[]    nums;
+        final boolean[] dirty;
+
+        final HashMap<Long, Integer> index = new HashMap<>();
+
+        int used;
+
+        // CLOCK
+        final boolean[] refd;
+        int hand;
+
+        // LRU, doubly linked list with the most recent slot at the head
+        final int[] prev;
+        final int[] next;
+        int head = NIL;
+        int tail = NIL;
+
+        Segment(int cap, Policy policy) {
+            final int bsz = CachingBlockDevice.this.bsz;
+
+            this.policy = policy;
+            this.data   = new byte   [cap * bsz];
+            this.nums   = new long   [cap];
+            this.dirty  = new boolean[cap];
+
+            final boolean lru = Policy.LRU == policy;
+            this.refd = lru ? null : new boolean[cap];
+            this.prev = lru ? new int[cap] : null;
+            this.next = lru ? new int[cap] : null;
+        }
+
+        synchronized void read(long num, byte[] block, int ofs) throws IOException {
+            final int bsz = CachingBlockDevice.this.bsz;
+            final Integer slot = this.index.get(num);
+            if (null != slot) {
+                CachingBlockDevice.this.hits.increment();
+                touch(slot);
+                System.arraycopy(this.data, slot * bsz, block, ofs, bsz);
+                return;
+            }
+            CachingBlockDevice.this.misses.increment();
+            synchronized(CachingBlockDevice.this.io) {
+                CachingBlockDevice.this.bdev.read(num, block, ofs);
+            }
+            final int s = victim();
+            System.arraycopy(block, ofs, this.data, s * bsz, bsz);
+            insert(s, num, false);
+        }
+
+        synchronized void write(long num, byte[] block, int ofs) throws IOException {
+            final int bsz = CachingBlockDevice.this.bsz;
+            final boolean writeBack = CachingBlockDevice.this.writeBack;
+            if (!writeBack) {
+                synchronized(CachingBlockDevice.this.io) {
+                    CachingBlockDevice.this.bdev.write(num, block, ofs);
+                }
+            }
+            final Integer slot = this.index.get(num);
+            final int s;
+            if (null == slot) {
+                s = victim();
+                insert(s, num, writeBack);
+            }
+            else {
+                s = slot;
+                touch(s);
+                this.dirty[s] |= writeBack;
+            }
+            System.arraycopy(block, ofs, this.data, s * bsz, bsz);
+        }
+
+        synchronized void flush() throws IOException {
+            final int bsz = CachingBlockDevice.this.bsz;
+            // write them out in block order, the device is likely to be happier
+            int count = 0;
+            final Integer[] slots = new Integer[this.used];
+            for (int s = 0; s < this.used; s++) {
+                if (this.dirty[s]) {
+                    slots[count++] = s;
+                }
+            }
+            Arrays.sort(slots, 0, count, (a, b) -> Long.compare(this.nums[a], this.nums[b]));
+            for (int i = 0; i < count; i++) {
+                final int s = slots[i];
+                synchronized(CachingBlockDevice.this.io) {
+                    CachingBlockDevice.this.bdev.write(this.nums[s], this.data, s * bsz);
+                }
+                this.dirty[s] = false;
+                CachingBlockDevice.this.writeBacks.increment();
+            }
+        }
+
+        /**
+         * Gets a free slot, evicting (and maybe writing back) another block if
+         * the segment is full. The slot is not linked in yet.
+         */
+        int victim() throws IOException {
+            if (this.used < this.nums.length) {
+                return this.used++;
+            }
+            int s;
+            if (Policy.LRU == this.policy) {
+                s = this.tail;
+            }
+            else {
+                while (this.refd[this.hand]) {
+                    this.refd[this.hand] = false;
+                    this.hand = (this.hand + 1) % this.nums.length;
+                }
+                s = this.hand;
+                this.hand = (this.hand + 1) % this.nums.length;
+            }
+            if (this.dirty[s]) {
+                synchronized(CachingBlockDevice.this.io) {
+                    CachingBlockDevice.this.bdev.write(this.nums[s], this.data,
+                            s * CachingBlockDevice.this.bsz);
+                }
+                this.dirty[s] = false;
+                CachingBlockDevice.this.writeBacks.increment();
+            }
+            this.index.remove(this.nums[s]);
+            if (Policy.LRU == this.policy) {
+                unlink(s);
+            }
+            CachingBlockDevice.this.evictions.increment();
+            return s;
+        }
+
+        void insert(int s, long num, boolean dirty) {
+            this.nums [s] = num;
+            this.dirty[s] = dirty;
+            this.index.put(num, s);
+            if (Policy.LRU == this.policy) {
+                link(s);
+            }
+            else {
+                this.refd[s] = false;
+            }
+        }
+
+        void touch(int s) {
+            if (Policy.LRU == this.policy) {
+                if (this.head != s) {
+                    unlink(s);
+                    link(s);
+                }
+            }
+            else {
+                this.refd[s] = true;
+            }
+        }
+
+        void link(int s) {
+            this.prev[s] = NIL;
+            this.next[s] = this.head;
+            if (NIL != this.head) {
+                this.prev[this.head] = s;
+            }
+            this.head = s;
+            if (NIL == this.tail) {
+                this.tail = s;
+            }
+        }
+
+        void unlink(int s) {
+            final int p = this.prev[s];
+            final int n = this.next[s];
+            if (NIL == p) this.head = n; else this.next[p] = n;
+            if (NIL == n) this.tail = p; else this.prev[n] = p;
+        }
+    }
+}
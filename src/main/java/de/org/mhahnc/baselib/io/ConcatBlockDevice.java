@@ -0,0 +1,176 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Presents multiple devices as one, with their blocks following each other.
+ * Ranged I/O crossing the border of two devices gets split up, everything else
+ * is passed through with just the block numbers translated.
+ */
+public class ConcatBlockDevice implements BlockDevice {
+    final BlockDevice[] devs;
+    /** Number of the first block of each device, plus the total size. */
+    final long[]        starts;
+    final int           bsz;
+
+    boolean closed;
+
+    /**
+     * Default ctor.
+     * @param devs The devices to concatenate, all with the same block size.
+     */
+    public ConcatBlockDevice(BlockDevice... devs) {
+        if (0 == devs.length) {
+            throw new IllegalArgumentException("no devices");
+        }
+        this.devs   = devs.clone();
+        this.starts = new long[devs.length + 1];
+        for (int i = 0; i < devs.length; i++) {
+            if (devs[i].blockSize() != devs[0].blockSize()) {
+                throw new IllegalArgumentException(String.format(
+                        "block size mismatch (%d<>%d)",
+                        devs[i].blockSize(), devs[0].blockSize()));
+            }
+            this.starts[i + 1] = this.starts[i] + devs[i].size();
+        }
+        this.bsz = devs[0].blockSize();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        for (BlockDevice dev : this.devs) {
+            if (dev.readOnly()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        for (BlockDevice dev : this.devs) {
+            if (dev.serialWrite()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.starts[this.devs.length];
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        for (BlockDevice dev : this.devs) {
+            if (dev.writeOnly()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param num The block number.
+     * @return Index of the device holding the block.
+     */
+    int device(long num) {
+        int idx = Arrays.binarySearch(this.starts, num);
+        if (idx < 0) {
+            return -idx - 2;
+        }
+        // skip devices of size zero
+        while (this.starts[idx + 1] == num) {
+            idx++;
+        }
+        return idx;
+    }
+
+    void checkRange(long first, int count) throws IOException {
+        if (first < 0L ||
+            first > size() - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, size()));
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        final int d = device(num);
+        this.devs[d].read(num - this.starts[d], block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        final int d = device(num);
+        this.devs[d].write(num - this.starts[d], block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        transfer(first, count, buf, ofs, false);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        transfer(first, count, buf, ofs, true);
+    }
+
+    void transfer(long first, int count, byte[] buf, int ofs, boolean write) throws IOException {
+        if (0 >= count) {
+            return;
+        }
+        checkRange(first, count);
+        for (int d = device(first); 0 < count; d++) {
+            final int part = (int)Math.min(count, this.starts[d + 1] - first);
+            if (0 == part) {
+                continue;
+            }
+            if (write) {
+                this.devs[d].writeBlocks(first - this.starts[d], part, buf, ofs);
+            }
+            else {
+                this.devs[d].readBlocks(first - this.starts[d], part, buf, ofs);
+            }
+            first += part;
+            count -= part;
+            ofs   += part * this.bsz;
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        IOException ioe = null;
+        for (BlockDevice dev : this.devs) {
+            try {
+                dev.close(err);
+            }
+            catch (IOException ioe2) {
+                if (null == ioe) {
+                    ioe = ioe2;
+                }
+            }
+        }
+        if (null != ioe) {
+            throw ioe;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * File registrar which keeps only the directory tree in memory, the file nodes
+ * get spilled to an append-only temporary file once a certain number of them
+ * got registered. Every spill writes one sorted run per directory, listing
+ * the files of a directory then means merging its runs. Runs get merged on
+ * disk as they pile up, so a directory never has more than logarithmically
+ * many of them. Names and links must not exceed 65534 bytes (UTF-8), longer
+ * ones get rejected when the node gets added. Per spilled file
+ * some 8 bytes of heap remain (the record offset), so volumes of tens of
+ * millions of files can be built with a bounded heap.
+ * <p>
+ * File nodes handed out by the registrar after they got spilled are new
+ * instances, carrying over the properties, the parent and the link, but not
+ * any tags (besides the directory association). The registrar is not
+ * thread-safe and must be closed to remove the temporary file.
+ */
+public class DiskFileRegistrar extends FileRegistrar.InMemory implements Closeable {
+    /** Default number of files kept in memory before spilling. */
+    public final static int DEFAULT_MAX_MEMFILES = 100000;
+
+    final Store store;
+    final int   maxMemFiles;
+
+    int memFiles;
+    final ArrayList<SpillDir> pending = new ArrayList<>();
+
+    // the (file system) parents and file systems the records refer to
+    final ArrayList<FileNode>                parents    = new ArrayList<>();
+    final IdentityHashMap<FileNode, Integer> parentIdxs = new IdentityHashMap<>();
+    final ArrayList<FileSystem>              fsyss      = new ArrayList<>();
+
+    /**
+     * @param cmp Comparator for object names.
+     * @param tmpDir Where to create the spill file, null for the default
+     * temporary directory.
+     * @param maxMemFiles Number of files to keep in memory before spilling.
+     * @throws IOException If the spill file could not be created.
+     */
+    public DiskFileRegistrar(Comparator<String> cmp, File tmpDir, int maxMemFiles) throws IOException {
+        super(cmp);
+        if (1 > maxMemFiles) {
+            throw new IllegalArgumentException("invalid number of memory files");
+        }
+        this.maxMemFiles = maxMemFiles;
+        this.store = new Store(File.createTempFile("freg", ".tmp", tmpDir));
+    }
+
+    /** @see java.io.Closeable#close() */
+    public void close() throws IOException {
+        this.store.close();
+    }
+
+    /** @return Number of bytes spilled so far. */
+    public long spilled() {
+        return this.store.end;
+    }
+
+    Dir newDir(FileNode node, Directory parent) {
+        return new SpillDir(node, parent);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Sorted run of file records of one directory. */
+    static class Run {
+        final long[] ofs;
+        final BitSet dead = new BitSet();
+        /** Names of the first and the last record, to skip runs quickly. */
+        final String first;
+        final String last;
+
+        Run(long[] ofs, String first, String last) {
+            this.ofs   = ofs;
+            this.first = first;
+            this.last  = last;
+        }
+
+        /** @return Position of the next live record, ofs.length if none. */
+        int next(int pos) {
+            return Math.min(this.ofs.length, this.dead.nextClearBit(pos + 1));
+        }
+
+        int live() {
+            return this.ofs.length - this.dead.cardinality();
+        }
+    }
+
+    class SpillDir extends Dir {
+        final ArrayList<Run> runs = new ArrayList<>(1);
+        int spilled;
+
+        // outcome of the last lookup, so registering the file right after it
+        // does not need to search the runs again
+        String lookup;
+        Run    lookupRun;
+        int    lookupIdx;
+
+        SpillDir(FileNode node, Directory parent) {
+            super(node, parent);
+        }
+
+        public Iterator<FileNode> files() {
+            if (this.runs.isEmpty()) {
+                return super.files();
+            }
+            return new Merge(this);
+        }
+
+        FileNode file(String name) throws IOException {
+            this.lookup    = name;
+            this.lookupRun = null;
+            FileNode result = super.file(name);
+            if (null != result) {
+                return result;
+            }
+            for (int i = this.runs.size() - 1; i >= 0; i--) {
+                final Run run = this.runs.get(i);
+                final int idx = find(run, name);
+                if (-1 != idx) {
+                    this.lookupRun = run;
+                    this.lookupIdx = idx;
+                    return DiskFileRegistrar.this.store.node(run.ofs[idx], this);
+                }
+            }
+            return null;
+        }
+
+        void putFile(String name, FileNode nd) throws IOException {
+            Store.check(nd);
+            Run run = this.lookupRun;
+            int idx = this.lookupIdx;
+            if (!name.equals(this.lookup)) {
+                // (a name lives either in memory or in one of the runs)
+                run = null;
+                if (null == this.files.get(name)) {
+                    for (Run run2 : this.runs) {
+                        idx = find(run2, name);
+                        if (-1 != idx) {
+                            run = run2;
+                            break;
+                        }
+                    }
+                }
+            }
+            this.lookup    = null;
+            this.lookupRun = null;
+            if (null != run) {
+                run.dead.set(idx);
+                this.spilled--;
+            }
+            if (0 == this.files.size()) {
+                DiskFileRegistrar.this.pending.add(this);
+            }
+            final int sz = this.files.size();
+            this.files.put(name, nd);
+            if (sz < this.files.size() &&
+                ++DiskFileRegistrar.this.memFiles > DiskFileRegistrar.this.maxMemFiles) {
+                spill();
+            }
+        }
+
+        int fileCount() {
+            return this.files.size() + this.spilled;
+        }
+
+        // binary search for a live record, -1 if not found
+        int find(Run run, String name) throws IOException {
+            final Comparator<String> cmp = DiskFileRegistrar.this.cmp;
+            if (0 == run.ofs.length ||
+                0 > cmp.compare(name, run.first) ||
+                0 < cmp.compare(name, run.last)) {
+                return -1;
+            }
+            final Store store = DiskFileRegistrar.this.store;
+            int lo = 0, hi = run.ofs.length - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int c = cmp.compare(store.name(run.ofs[mid]), name);
+                if (0 > c) {
+                    lo = mid + 1;
+                }
+                else if (0 < c) {
+                    hi = mid - 1;
+                }
+                else {
+                    return run.dead.get(mid) ? -1 : mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Merges the newest runs as long as they are not much smaller than
+         * their predecessors, so the live records per run at least halve from
+         * the oldest to the newest one, and thus there are only logarithmically
+         * many runs for lookups and listings to go through.
+         * @throws IOException If any error occurred, the runs then stay as
+         * they were.
+         */
+        void compact() throws IOException {
+            for (int c = this.runs.size(); 2 <= c; c = this.runs.size()) {
+                final Run prev = this.runs.get(c - 2);
+                final Run last = this.runs.get(c - 1);
+                if (last.live() << 1 < prev.live()) {
+                    return;
+                }
+                final Run merged = merge(prev, last);
+                this.lookup = null;
+                this.runs.remove(c - 1);
+                if (0 == merged.ofs.length) {
+                    this.runs.remove(c - 2);
+                }
+                else {
+                    this.runs.set(c - 2, merged);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the files of all of the directories with pending ones to disk.
+     * @throws IOException If any error occurred. If writing the new runs
+     * failed nothing got spilled, a failed merge leaves the runs as they were.
+     */
+    void spill() throws IOException {
+        final long mark = this.store.end;
+        final long[][] ofss = new long[this.pending.size()][];
+        try {
+            for (int d = 0; d < ofss.length; d++) {
+                final SpillDir dir = this.pending.get(d);
+                final long[] ofs = ofss[d] = new long[dir.files.size()];
+                int i = 0;
+                for (FileNode nd : dir.files.values()) {
+                    ofs[i++] = this.store.append(nd);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            this.store.rollback(mark);
+            throw ioe;
+        }
+        final SpillDir[] dirs = this.pending.toArray(new SpillDir[ofss.length]);
+        for (int d = 0; d < ofss.length; d++) {
+            final SpillDir dir = dirs[d];
+            String first = null, last = null;
+            for (String name : dir.files.keySet()) {
+                first = null == first ? name : first;
+                last  = name;
+            }
+            dir.runs.add(new Run(ofss[d], first, last));
+            dir.spilled += ofss[d].length;
+            dir.files.clear();
+            dir.lookup = null;
+        }
+        this.pending.clear();
+        this.memFiles = 0;
+        for (SpillDir dir : dirs) {
+            dir.compact();
+        }
+    }
+
+    /**
+     * Merges the live records of two runs into a new one, appended to the
+     * spill file.
+     * @throws IOException If any error occurred, nothing got appended then.
+     */
+    Run merge(Run run0, Run run1) throws IOException {
+        final Store store = this.store;
+        final long mark = store.end;
+        final long[] ofs = new long[run0.live() + run1.live()];
+        String first = null, last = null;
+        try {
+            final Store.Cursor cur0 = store.new Cursor();
+            final Store.Cursor cur1 = store.new Cursor();
+            int pos0 = run0.next(-1);
+            int pos1 = run1.next(-1);
+            String name0 = pos0 < run0.ofs.length ? cur0.name(run0.ofs[pos0]) : null;
+            String name1 = pos1 < run1.ofs.length ? cur1.name(run1.ofs[pos1]) : null;
+            for (int i = 0; null != name0 || null != name1; i++) {
+                if (null == name1 || (null != name0 && 0 > this.cmp.compare(name0, name1))) {
+                    last = name0;
+                    ofs[i] = store.copy(cur0, run0.ofs[pos0]);
+                    pos0 = run0.next(pos0);
+                    name0 = pos0 < run0.ofs.length ? cur0.name(run0.ofs[pos0]) : null;
+                }
+                else {
+                    last = name1;
+                    ofs[i] = store.copy(cur1, run1.ofs[pos1]);
+                    pos1 = run1.next(pos1);
+                    name1 = pos1 < run1.ofs.length ? cur1.name(run1.ofs[pos1]) : null;
+                }
+                first = null == first ? last : first;
+            }
+        }
+        catch (IOException ioe) {
+            store.rollback(mark);
+            throw ioe;
+        }
+        return new Run(ofs, first, last);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Merges the runs and the in-memory files of a directory, in order. */
+    class Merge implements Iterator<FileNode> {
+        final SpillDir dir;
+        final Iterator<FileNode> imem;
+        final Store.Cursor[] curs;
+        final int[] poss;
+        final String[] names;
+        FileNode mem;
+
+        Merge(SpillDir dir) {
+            this.dir   = dir;
+            this.imem  = dir.files.values().iterator();
+            this.mem   = this.imem.hasNext() ? this.imem.next() : null;
+            final int c = dir.runs.size();
+            this.curs  = new Store.Cursor[c];
+            this.poss  = new int[c];
+            this.names = new String[c];
+            for (int i = 0; i < c; i++) {
+                this.poss[i] = -1;
+                this.curs[i] = DiskFileRegistrar.this.store.new Cursor();
+                advance(i);
+            }
+        }
+
+        void advance(int i) {
+            final Run run = this.dir.runs.get(i);
+            final int pos = this.poss[i] = run.next(this.poss[i]);
+            try {
+                this.names[i] = pos < run.ofs.length ? this.curs[i].name(run.ofs[pos]) : null;
+            }
+            catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        public boolean hasNext() {
+            if (null != this.mem) {
+                return true;
+            }
+            for (String name : this.names) {
+                if (null != name) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public FileNode next() {
+            final Comparator<String> cmp = DiskFileRegistrar.this.cmp;
+            int min = -1;
+            String mname = null == this.mem ? null : this.mem.name();
+            for (int i = 0; i < this.names.length; i++) {
+                final String name = this.names[i];
+                if (null != name && (null == mname || 0 > cmp.compare(name, mname))) {
+                    mname = name;
+                    min = i;
+                }
+            }
+            if (null == mname) {
+                throw new NoSuchElementException();
+            }
+            if (-1 == min) {
+                final FileNode result = this.mem;
+                this.mem = this.imem.hasNext() ? this.imem.next() : null;
+                return result;
+            }
+            final FileNode result;
+            try {
+                result = this.curs[min].node(this.dir);
+            }
+            catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            advance(min);
+            return result;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** File node read back from the spill file. */
+    static class SNode extends FileNode {
+        final FileSystem fsys;
+        final String     link;
+
+        SNode(FileNode parent, String name, long size, long timestamp,
+              int attributes, FileSystem fsys, String link) {
+            this.parent     = parent;
+            this.name       = name;
+            this.size       = size;
+            this.timestamp  = timestamp;
+            this.attributes = attributes;
+            this.fsys       = fsys;
+            this.link       = link;
+        }
+
+        public FileSystem fileSystem() {
+            return this.fsys;
+        }
+
+        protected String link() {
+            return this.link;
+        }
+    }
+
+    /**
+     * The append-only spill file. Records are laid out as
+     * [name length (2)][name (UTF-8)][link length (2), 0xffff for none][link]
+     * [parent (4)][file system (4)][attributes (4)][size (8)][timestamp (8)],
+     * the name leading so binary searches only need to read that.
+     */
+    class Store {
+        final static int BUFSIZE = 64 * 1024;
+        final static int NOLINK  = 0xffff;
+        /** Length of the fixed part of a record, after the name and link. */
+        final static int FIXLEN  = 4 + 4 + 4 + 8 + 8;
+
+        final File             file;
+        final RandomAccessFile raf;
+        final FileChannel      fch;
+        final ByteBuffer       wbuf = ByteBuffer.allocate(BUFSIZE);
+        final Cursor           rcur;
+        long                   end;
+
+        Store(File file) throws IOException {
+            this.file = file;
+            file.deleteOnExit();
+            this.raf = new RandomAccessFile(file, "rw");
+            this.fch = this.raf.getChannel();
+            this.rcur = new Cursor();
+        }
+
+        /**
+         * Checks whether a node can be stored at all.
+         * @param nd The node.
+         * @throws IOException If its name or its link is too long.
+         */
+        static void check(FileNode nd) throws IOException {
+            final String lnk = nd.link();
+            if (NOLINK <= utf8Length(nd.name()) ||
+                (null != lnk && NOLINK <= utf8Length(lnk))) {
+                throw new IOException(String.format("name of '%s' too long", nd.name()));
+            }
+        }
+
+        static int utf8Length(String s) {
+            int result = 0;
+            for (int i = 0, c = s.length(); i < c; i++) {
+                final char ch = s.charAt(i);
+                if (0x80 > ch) {
+                    result++;
+                }
+                else if (0x800 > ch) {
+                    result += 2;
+                }
+                else if (Character.isHighSurrogate(ch) && i + 1 < c &&
+                         Character.isLowSurrogate(s.charAt(i + 1))) {
+                    result += 4;
+                    i++;
+                }
+                else {
+                    // (lone surrogates get replaced by a single byte)
+                    result += Character.isSurrogate(ch) ? 1 : 3;
+                }
+            }
+            return result;
+        }
+
+        /** @return Buffer to put a record of the given length into. */
+        ByteBuffer reserve(int len) throws IOException {
+            if (len > this.wbuf.remaining()) {
+                flush();
+            }
+            // records not fitting into the buffer get written on their own
+            return len > this.wbuf.capacity() ? ByteBuffer.allocate(len) : this.wbuf;
+        }
+
+        /** @return Offset of the record put into a buffer from reserve(). */
+        long commit(ByteBuffer bb, int len) throws IOException {
+            final long result = this.end;
+            if (bb != this.wbuf) {
+                bb.flip();
+                long pos = result;
+                while (bb.hasRemaining()) {
+                    pos += this.fch.write(bb, pos);
+                }
+            }
+            this.end += len;
+            return result;
+        }
+
+        long append(FileNode nd) throws IOException {
+            final byte[] name = nd.name().getBytes(StandardCharsets.UTF_8);
+            final String slnk = nd.link();
+            final byte[] link = null == slnk ? null : slnk.getBytes(StandardCharsets.UTF_8);
+            if (NOLINK <= name.length || (null != link && NOLINK <= link.length)) {
+                throw new IOException(String.format("name of '%s' too long", nd.name()));
+            }
+            final int len = 2 + name.length + 2 + (null == link ? 0 : link.length) + FIXLEN;
+            final ByteBuffer bb = reserve(len);
+            bb.putShort((short)name.length).put(name);
+            if (null == link) {
+                bb.putShort((short)NOLINK);
+            }
+            else {
+                bb.putShort((short)link.length).put(link);
+            }
+            bb.putInt(parentIndex(nd.parent()))
+              .putInt(fsIndex(nd.fileSystem()))
+              .putInt(nd.attributes())
+              .putLong(nd.size())
+              .putLong(nd.timestamp());
+            return commit(bb, len);
+        }
+
+        /**
+         * Appends a copy of a record.
+         * @param cur Cursor which read the record's name last.
+         * @param ofs Offset of the record.
+         * @return Offset of the copy.
+         * @throws IOException If any error occurred.
+         */
+        long copy(Cursor cur, long ofs) throws IOException {
+            final int llen = cur.at(cur.pos, 2).getShort() & 0xffff;
+            final int len = (int)(cur.pos - ofs) + 2 + (NOLINK == llen ? 0 : llen) + FIXLEN;
+            final byte[] rec = new byte[len];
+            cur.at(ofs, len).get(rec);
+            final ByteBuffer bb = reserve(len);
+            bb.put(rec);
+            return commit(bb, len);
+        }
+
+        /**
+         * Drops everything appended after a certain point, to be overwritten
+         * by the next records.
+         * @param mark The former end.
+         */
+        void rollback(long mark) {
+            final long bufStart = this.end - this.wbuf.position();
+            this.wbuf.position((int)Math.max(0L, mark - bufStart));
+            this.end = mark;
+            this.rcur.bufOfs = -1L;
+        }
+
+        void flush() throws IOException {
+            this.wbuf.flip();
+            long pos = this.end - this.wbuf.remaining();
+            while (this.wbuf.hasRemaining()) {
+                pos += this.fch.write(this.wbuf, pos);
+            }
+            this.wbuf.clear();
+        }
+
+        String name(long ofs) throws IOException {
+            return this.rcur.name(ofs);
+        }
+
+        FileNode node(long ofs, Dir dir) throws IOException {
+            this.rcur.name(ofs);
+            return this.rcur.node(dir);
+        }
+
+        void close() throws IOException {
+            this.raf.close();
+            if (this.file.exists() && !this.file.delete()) {
+                throw new IOException(String.format(
+                        "cannot delete spill file '%s'", this.file));
+            }
+        }
+
+        /** Buffered reader of records, cheap for sequential access. */
+        class Cursor {
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            long       bufOfs = -1L;
+            long       pos;
+            String     name;
+
+            ByteBuffer at(long ofs, int len) throws IOException {
+                if (-1L == this.bufOfs || ofs < this.bufOfs ||
+                    ofs + len > this.bufOfs + this.buf.limit()) {
+                    if (0 < Store.this.wbuf.position()) {
+                        flush();
+                    }
+                    if (len > this.buf.capacity()) {
+                        this.buf = ByteBuffer.allocate(len);
+                    }
+                    this.buf.clear();
+                    long p = ofs;
+                    while (this.buf.hasRemaining() && p < Store.this.end) {
+                        final int read = Store.this.fch.read(this.buf, p);
+                        if (-1 == read) {
+                            break;
+                        }
+                        p += read;
+                    }
+                    this.buf.flip();
+                    this.bufOfs = ofs;
+                    if (this.buf.limit() < len) {
+                        this.bufOfs = -1L;
+                        throw new IOException(String.format(
+                                "spill file truncated at %d", ofs));
+                    }
+                }
+                return this.buf.position((int)(ofs - this.bufOfs));
+            }
+
+            String string(long ofs, int len) throws IOException {
+                final ByteBuffer bb = at(ofs, len);
+                final byte[] raw = new byte[len];
+                bb.get(raw);
+                return new String(raw, StandardCharsets.UTF_8);
+            }
+
+            String name(long ofs) throws IOException {
+                final int nlen = at(ofs, 2).getShort() & 0xffff;
+                this.name = string(ofs + 2, nlen);
+                this.pos  = ofs + 2 + nlen;
+                return this.name;
+            }
+
+            /** Reads the rest of the record whose name got read last. */
+            FileNode node(Dir dir) throws IOException {
+                long p = this.pos;
+                final int llen = at(p, 2).getShort() & 0xffff;
+                p += 2;
+                String link = null;
+                if (NOLINK != llen) {
+                    link = string(p, llen);
+                    p += llen;
+                }
+                final ByteBuffer bb = at(p, FIXLEN);
+                final int pidx  = bb.getInt();
+                final int fsidx = bb.getInt();
+                final int attrs = bb.getInt();
+                final long size = bb.getLong();
+                final long ts   = bb.getLong();
+                final FileNode result = new SNode(
+                        -1 == pidx ? null : DiskFileRegistrar.this.parents.get(pidx),
+                        this.name, size, ts, attrs,
+                        -1 == fsidx ? null : DiskFileRegistrar.this.fsyss.get(fsidx),
+                        link);
+                result.setTag(DIR_TAG_NAME, dir);
+                return result;
+            }
+        }
+    }
+
+    int parentIndex(FileNode parent) {
+        if (null == parent) {
+            return -1;
+        }
+        Integer result = this.parentIdxs.get(parent);
+        if (null == result) {
+            result = this.parents.size();
+            this.parents.add(parent);
+            this.parentIdxs.put(parent, result);
+        }
+        return result;
+    }
+
+    int fsIndex(FileSystem fsys) {
+        if (null == fsys) {
+            return -1;
+        }
+        for (int i = 0, c = this.fsyss.size(); i < c; i++) {
+            if (this.fsyss.get(i) == fsys) {
+                return i;
+            }
+        }
+        this.fsyss.add(fsys);
+        return this.fsyss.size() - 1;
+    }
+}
@@ -18,7 +18,8 @@ public abstract class FileNode implements Taggable {
     protected long     timestamp;
     protected int      attributes;
 
-    protected CompactMap<String, Object> tags = new CompactMap<>();
+    /** The tags, only allocated when the first one gets set. */
+    protected CompactMap<String, Object> tags;
 
     public final static int ATTR_NONE      = 0;
     public final static int ATTR_READONLY  = 1;
@@ -70,7 +71,7 @@ public abstract class FileNode implements Taggable {
      * @return True if all of the attributes do match.
      */
     public boolean hasAttributes(int attr) {
-        return attr == (attr & this.attributes);
+        return attr == (attr & attributes());
     }
 
     /**
@@ -80,18 +81,19 @@ public abstract class FileNode implements Taggable {
      */
     public String path(boolean linked) {
         StringBuilder result = new StringBuilder();
-        if (null != this.name) {
-            result.append(this.name);
+        final String nm = name();
+        if (null != nm) {
+            result.append(nm);
         }
         FileNode fn = this;
 
         final char   sepa    = fileSystem().separatorChar();
         final String sepastr = sepa + "";
 
-        if (null != fn.parent) {
-            fn = fn.parent;
+        if (null != fn.parent()) {
+            fn = fn.parent();
             for (;;) {
-                if (null == fn.parent) {
+                if (null == fn.parent()) {
                     if (!fn.hasAttributes(ATTR_ROOT) || !fn.name().endsWith(sepastr)) {
                         result.insert(0, sepa);
                     }
@@ -103,7 +105,7 @@ public abstract class FileNode implements Taggable {
                 result.insert(0, fileSystem().separatorChar());
                 result.insert(0, fn.name());
 
-                fn = fn.parent;
+                fn = fn.parent();
             }
         }
 
@@ -120,13 +122,21 @@ public abstract class FileNode implements Taggable {
         return result.toString();
     }
 
+    /** @return The tags (not a copy), null if there are none. */
+    CompactMap<String, Object> tags() {
+        return this.tags;
+    }
+
     /** @see de.org.mhahnc.baselib.util.Taggable#getTag(java.lang.String) */
     public Object getTag(String name) {
-        return this.tags.get(name);
+        return null == this.tags ? null : this.tags.get(name);
     }
 
     /** @see de.org.mhahnc.baselib.util.Taggable#setTag(java.lang.String, java.lang.Object) */
     public void setTag(String name, Object tag) {
+        if (null == this.tags) {
+            this.tags = new CompactMap<>();
+        }
         this.tags.put(name, tag);
     }
 
@@ -140,7 +150,7 @@ public abstract class FileNode implements Taggable {
 
     /** @see java.lang.Object#hashCode() */
     public int hashCode() {
-        return this.name.hashCode();
+        return name().hashCode();
     }
 
     /**
@@ -150,10 +160,10 @@ public abstract class FileNode implements Taggable {
     public FileNode root() {
         FileNode result = this;
         for (;;) {
-            if (null == result.parent) {
+            if (null == result.parent()) {
                 return result.hasAttributes(ATTR_ROOT) ? result : null;
             }
-            result = result.parent;
+            result = result.parent();
         }
     }
 
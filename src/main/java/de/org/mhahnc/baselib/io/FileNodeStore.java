@@ -0,0 +1,323 @@
+package de.org.mhahnc.baselib.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import de.org.mhahnc.baselib.util.CompactMap;
+
+/**
+ * Column-oriented storage of file nodes, for when millions of them need to be
+ * kept around. All of the node properties live in primitive arrays, names get
+ * packed into one byte arena (as UTF-8) and tags are only allocated for nodes
+ * which actually have some. Nodes are addressed by their index, and returned
+ * as lightweight flyweights, created on demand. Two flyweights are equal if
+ * they refer to the same node of the same store. Directories are the
+ * exception, their flyweights get cached, so that the same instance is
+ * returned every time (registrars compare parents by identity).
+ * <p>
+ * Nodes cannot be removed; the store is not thread-safe.
+ */
+public class FileNodeStore {
+    /** Index denoting no node, e.g. for the parent of a root. */
+    public final static int NONE = -1;
+
+    int count;
+
+    int[]  parents    = new int [256];
+    long[] sizes      = new long[256];
+    long[] timestamps = new long[256];
+    int[]  attributes = new int [256];
+    byte[] fsidxs     = new byte[256];
+
+    // the names, with a length of -1 meaning there's none
+    int[]  nameOfs = new int[256];
+    int[]  nameLen = new int[256];
+    byte[] arena   = new byte[4096];
+    int    arenaLen;
+
+    final ArrayList<FileSystem> fsyss = new ArrayList<>();
+
+    // sparse, since hardly any nodes have these
+    final HashMap<Integer, CompactMap<String, Object>> tags  = new HashMap<>();
+    final HashMap<Integer, String>                     links = new HashMap<>();
+
+    // the directory flyweights handed out so far
+    final HashMap<Integer, Node> dirs = new HashMap<>();
+
+    // (regular) parent nodes added already
+    final IdentityHashMap<FileNode, Integer> known = new IdentityHashMap<>();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return Number of nodes stored. */
+    public int size() {
+        return this.count;
+    }
+
+    /** @return Number of bytes used by the name arena. */
+    public int arenaSize() {
+        return this.arenaLen;
+    }
+
+    /**
+     * Adds a node, including all of its parents not stored yet. Parents get
+     * recognized by identity, or as flyweights of this store. The node's tags
+     * get copied over as well.
+     * @param nd The node to add.
+     * @return Index of the new node.
+     */
+    public int add(FileNode nd) {
+        final int idx = index(nd);
+        if (NONE != idx) {
+            return idx;
+        }
+        final FileNode pnd = nd.parent();
+        final int pidx;
+        if (null == pnd) {
+            pidx = NONE;
+        }
+        else {
+            final Integer kidx = this.known.get(pnd);
+            if (null != kidx) {
+                pidx = kidx;
+            }
+            else {
+                pidx = add(pnd);
+                if (NONE == index(pnd)) {
+                    this.known.put(pnd, pidx);
+                }
+            }
+        }
+        final int result = copy(pidx, nd);
+        final CompactMap<String, Object> tags = nd.tags();
+        if (null != tags) {
+            this.tags.put(result, new CompactMap<>(tags));
+        }
+        return result;
+    }
+
+    /**
+     * Adds a copy of a node, under the given parent. Tags do not get copied.
+     * @param parent Index of the parent node, NONE if there is no parent.
+     * @param nd The node to copy.
+     * @return Index of the new node.
+     */
+    int copy(int parent, FileNode nd) {
+        final int result = add(parent, nd.fileSystem(), nd.name(),
+                               nd.size(), nd.timestamp(), nd.attributes());
+        final String lnk = nd.link();
+        if (null != lnk) {
+            this.links.put(result, lnk);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a node.
+     * @param parent Index of the parent node, NONE if there is no parent.
+     * @param fsys The file system the node belongs to.
+     * @param name The name, might be null.
+     * @param size Size of the node.
+     * @param timestamp Time stamp of the node.
+     * @param attrs Attributes, masked out of the FileNode.ATTR_xxx constants.
+     * @return Index of the new node.
+     */
+    public int add(int parent, FileSystem fsys, String name,
+                   long size, long timestamp, int attrs) {
+        if (NONE != parent && (0 > parent || parent >= this.count)) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal parent (%d, count=%d)", parent, this.count));
+        }
+        if (this.count == this.parents.length) {
+            grow(this.count << 1);
+        }
+        final int result = this.count++;
+        this.parents   [result] = parent;
+        this.sizes     [result] = size;
+        this.timestamps[result] = timestamp;
+        this.attributes[result] = attrs;
+        this.fsidxs    [result] = fileSystemIndex(fsys);
+        if (null == name) {
+            this.nameOfs[result] = this.arenaLen;
+            this.nameLen[result] = -1;
+        }
+        else {
+            final byte[] raw = name.getBytes(StandardCharsets.UTF_8);
+            if (this.arena.length - this.arenaLen < raw.length) {
+                this.arena = Arrays.copyOf(this.arena,
+                        Math.max(this.arena.length << 1, this.arenaLen + raw.length));
+            }
+            System.arraycopy(raw, 0, this.arena, this.arenaLen, raw.length);
+            this.nameOfs[result] = this.arenaLen;
+            this.nameLen[result] = raw.length;
+            this.arenaLen += raw.length;
+        }
+        return result;
+    }
+
+    void grow(int cap) {
+        this.parents    = Arrays.copyOf(this.parents   , cap);
+        this.sizes      = Arrays.copyOf(this.sizes     , cap);
+        this.timestamps = Arrays.copyOf(this.timestamps, cap);
+        this.attributes = Arrays.copyOf(this.attributes, cap);
+        this.fsidxs     = Arrays.copyOf(this.fsidxs    , cap);
+        this.nameOfs    = Arrays.copyOf(this.nameOfs   , cap);
+        this.nameLen    = Arrays.copyOf(this.nameLen   , cap);
+    }
+
+    byte fileSystemIndex(FileSystem fsys) {
+        for (int i = 0, c = this.fsyss.size(); i < c; i++) {
+            if (this.fsyss.get(i) == fsys) {
+                return (byte)i;
+            }
+        }
+        if (256 == this.fsyss.size()) {
+            throw new IllegalStateException("too many file systems");
+        }
+        this.fsyss.add(fsys);
+        return (byte)(this.fsyss.size() - 1);
+    }
+
+    /**
+     * Releases the memory not needed for the current number of nodes. Also
+     * forgets about the regular parent nodes added so far, so adding their
+     * children again would store them anew.
+     */
+    public void trim() {
+        grow(Math.max(1, this.count));
+        this.arena = Arrays.copyOf(this.arena, this.arenaLen);
+        this.known.clear();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets a node.
+     * @param idx Index of the node.
+     * @return The node, as a flyweight.
+     */
+    public FileNode node(int idx) {
+        if (0 > idx || idx >= this.count) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "illegal index (%d, count=%d)", idx, this.count));
+        }
+        return flyweight(idx);
+    }
+
+    Node flyweight(int idx) {
+        if (0 == (this.attributes[idx] & FileNode.ATTR_DIRECTORY)) {
+            return newNode(idx);
+        }
+        Node result = this.dirs.get(idx);
+        if (null == result) {
+            this.dirs.put(idx, result = newNode(idx));
+        }
+        return result;
+    }
+
+    /** Creates a flyweight, for stores handing out their own kind of nodes. */
+    Node newNode(int idx) {
+        return new Node(idx);
+    }
+
+    /**
+     * Gets the index of a node.
+     * @param nd The node.
+     * @return The index, NONE if the node is not a flyweight of this store.
+     */
+    public int index(FileNode nd) {
+        return nd instanceof Node fw && fw.store() == this ? fw.idx : NONE;
+    }
+
+    /** @return Index of a node's parent, NONE if it is a top node. */
+    public int parent(int idx) {
+        return this.parents[idx];
+    }
+
+    /** @return Name of a node, null if it has got none. */
+    public String name(int idx) {
+        final int len = this.nameLen[idx];
+        return -1 == len ? null :
+               new String(this.arena, this.nameOfs[idx], len, StandardCharsets.UTF_8);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Flyweight, everything gets read from and written to the store. */
+    class Node extends FileNode {
+        final int idx;
+
+        Node(int idx) {
+            this.idx = idx;
+        }
+
+        FileNodeStore store() {
+            return FileNodeStore.this;
+        }
+
+        public FileSystem fileSystem() {
+            return FileNodeStore.this.fsyss.get(FileNodeStore.this.fsidxs[this.idx] & 0xff);
+        }
+
+        public String name() {
+            return FileNodeStore.this.name(this.idx);
+        }
+
+        protected String link() {
+            return FileNodeStore.this.links.get(this.idx);
+        }
+
+        public FileNode parent() {
+            final int pidx = FileNodeStore.this.parents[this.idx];
+            return NONE == pidx ? null : flyweight(pidx);
+        }
+
+        public long size() {
+            return FileNodeStore.this.sizes[this.idx];
+        }
+
+        public long timestamp() {
+            return FileNodeStore.this.timestamps[this.idx];
+        }
+
+        public int attributes() {
+            return FileNodeStore.this.attributes[this.idx];
+        }
+
+        CompactMap<String, Object> tags() {
+            return FileNodeStore.this.tags.get(this.idx);
+        }
+
+        public Object getTag(String name) {
+            final CompactMap<String, Object> tags = tags();
+            return null == tags ? null : tags.get(name);
+        }
+
+        public void setTag(String name, Object tag) {
+            CompactMap<String, Object> tags = FileNodeStore.this.tags.get(this.idx);
+            if (null == tags) {
+                FileNodeStore.this.tags.put(this.idx, tags = new CompactMap<>());
+            }
+            tags.put(name, tag);
+        }
+
+        /** @see de.org.mhahnc.baselib.io.FileNode#equals(java.lang.Object) */
+        public boolean equals(Object obj) {
+            // same slot is a shortcut, otherwise it is up to the file system,
+            // as for any other node (and the hash code stays the name's one)
+            if (obj instanceof Node nd &&
+                nd.store() == FileNodeStore.this &&
+                nd.idx == this.idx) {
+                return true;
+            }
+            return super.equals(obj);
+        }
+
+        public String toString() {
+            return String.format("%s[%d]", name(), this.idx);
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package de.org.mhahnc.baselib.io;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import de.org.mhahnc.baselib.util.Combo;
 import de.org.mhahnc.baselib.util.CompactMap;
@@ -118,7 +125,7 @@ public abstract class FileRegistrar {
                 if (0 < snodes.length()) {
                     snodes.append('|');
                 }
-                snodes.append(node.name);
+                snodes.append(node.name());
             }
         }
         ps.printf("%s[%s]\n", spaces, snodes.toString());
@@ -126,7 +133,7 @@ public abstract class FileRegistrar {
         final Iterator<FileNode> ifn = dir.files();
         while (ifn.hasNext()) {
             final FileNode fn = ifn.next();
-            ps.printf("%s%s (%d)\n", spaces, fn.name, fn.size);
+            ps.printf("%s%s (%d)\n", spaces, fn.name(), fn.size());
         }
 
         final Iterator<Directory> idir = dir.dirs();
@@ -139,13 +146,15 @@ public abstract class FileRegistrar {
 
     /**
      * File registrar instance backed by memory, consider the number of files
-     * to register, to avoid out-of-memory errors. Directories and files are
-     * sorted in a case-insensitive fashion.
+     * to register, to avoid out-of-memory errors (or use DiskFileRegistrar).
+     * Directories and files are sorted in a case-insensitive fashion.
      */
     public static class InMemory extends FileRegistrar {
 
         final Dir                root;
         final Comparator<String> cmp;
+        /** Where the files get kept in compact mode, null otherwise. */
+        final CompactStore       store;
 
         FileNode[] nodePath = new FileNode[32];
 
@@ -153,8 +162,22 @@ public abstract class FileRegistrar {
          * @param cmp Comparator for object names.
          */
         public InMemory(Comparator<String> cmp) {
+            this(cmp, false);
+        }
+
+        /**
+         * @param cmp Comparator for object names.
+         * @param compact True to keep the files in a FileNodeStore, instead of
+         * referencing the nodes passed in, which takes a fraction of the memory.
+         * The files then get handed out as flyweights: copies of the nodes
+         * registered, with the same path and properties, but without any tags
+         * besides the directory association. Replaced files keep taking up
+         * their space in the store.
+         */
+        public InMemory(Comparator<String> cmp, boolean compact) {
             this.cmp = cmp;
-            this.root = new Dir(new FileNode.Virtual(
+            this.store = compact ? new CompactStore() : null;
+            this.root = newDir(new FileNode.Virtual(
                 null, "", 0, -1L,
                 FileNode.ATTR_DIRECTORY |
                 FileNode.ATTR_ROOT), null);
@@ -194,6 +217,17 @@ public abstract class FileRegistrar {
             public Iterator<FileNode> files() {
                 return this.files.values().iterator();
             }
+            /** @return The registered file with the given name, or null. */
+            FileNode file(String name) throws IOException {
+                return this.files.get(name);
+            }
+            /** Registers a file, replacing any former one with the same name. */
+            void putFile(String name, FileNode nd) throws IOException {
+                this.files.put(name, nd);
+            }
+            int fileCount() {
+                return this.files.size();
+            }
             public Directory parent() {
                 return this.parent;
             }
@@ -203,29 +237,30 @@ public abstract class FileRegistrar {
             @Override
             public String toString() {
                 return String.format("'%s', %d nodes, %d dirs, %d files, %s parent",
-                        this.nodes[0].name,
+                        this.nodes[0].name(),
                         this.nodes.length,
                         this.dirs.size(),
-                        this.files.size(),
+                        fileCount(),
                         null == this.parent ? "no" : "has");
             }
         }
 
         static class VFileNode extends FileNode {
             public VFileNode(String name, FileNode realNode) {
-                this.name = name == null?
-                            name : realNode.name;
+                this.name = null == name && null != realNode ?
+                            realNode.name() : name;
 
                 if (null == realNode) {
                     this.timestamp  = System.currentTimeMillis();
                     this.attributes = ATTR_DIRECTORY;
                 }
                 else {
-                    this.parent     = realNode.parent;
-                    this.size       = realNode.size;
-                    this.timestamp  = realNode.timestamp;
-                    this.attributes = realNode.attributes;
-                    this.tags       = new CompactMap<>(realNode.tags);
+                    this.parent     = realNode.parent();
+                    this.size       = realNode.size();
+                    this.timestamp  = realNode.timestamp();
+                    this.attributes = realNode.attributes();
+                    final CompactMap<String, Object> tags = realNode.tags();
+                    this.tags       = null == tags ? null : new CompactMap<>(tags);
                 }
             }
 
@@ -234,13 +269,186 @@ public abstract class FileRegistrar {
             }
         }
 
+        /**
+         * Creates a new directory, subclasses can provide their own storage of
+         * the file nodes this way.
+         * @param node The (first) directory node.
+         * @param parent The parent directory, null for the root.
+         * @return New directory instance.
+         */
+        Dir newDir(FileNode node, Directory parent) {
+            return null == this.store ? new Dir(node, parent) :
+                                        new CompactDir(node, parent);
+        }
+
+        /**
+         * Store whose file flyweights know their directory by the tag of their
+         * parent, so no tag needs to be stored per file.
+         */
+        static class CompactStore extends FileNodeStore {
+            Node newNode(int idx) {
+                return new Node(idx) {
+                    public Object getTag(String name) {
+                        final Object result = super.getTag(name);
+                        if (null != result ||
+                            !DIR_TAG_NAME.equals(name) ||
+                            hasAttributes(FileNode.ATTR_DIRECTORY)) {
+                            return result;
+                        }
+                        final FileNode parent = parent();
+                        return null == parent ? null : parent.getTag(name);
+                    }
+                };
+            }
+        }
+
+        /**
+         * Directory keeping its files as indexes into the store, sorted by name.
+         * New files go to a small sorted list first, which gets merged into the
+         * main one once it grows beyond the square root of the latter's size.
+         * Every source directory the files came from gets copied into the store
+         * once per directory, as the parent carrying the directory tag.
+         */
+        class CompactDir extends Dir {
+            int[] main   = new int[0];
+            int   mainLen;
+            int[] recent = new int[0];
+            int   recentLen;
+            IdentityHashMap<FileNode, Integer> srcs;
+
+            public CompactDir(FileNode node, Directory parent) {
+                super(node, parent);
+            }
+
+            public Iterator<FileNode> files() {
+                return new Iterator<FileNode>() {
+                    int m, r;
+                    public boolean hasNext() {
+                        return this.m < CompactDir.this.mainLen ||
+                               this.r < CompactDir.this.recentLen;
+                    }
+                    public FileNode next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final CompactDir cd = CompactDir.this;
+                        final int idx;
+                        if (this.r == cd.recentLen ||
+                            (this.m < cd.mainLen && 0 > compare(cd.main[this.m], cd.recent[this.r]))) {
+                            idx = cd.main[this.m++];
+                        }
+                        else {
+                            idx = cd.recent[this.r++];
+                        }
+                        return InMemory.this.store.node(idx);
+                    }
+                };
+            }
+
+            FileNode file(String name) {
+                int pos = find(this.recent, this.recentLen, name);
+                if (0 <= pos) {
+                    return InMemory.this.store.node(this.recent[pos]);
+                }
+                pos = find(this.main, this.mainLen, name);
+                return 0 > pos ? null : InMemory.this.store.node(this.main[pos]);
+            }
+
+            void putFile(String name, FileNode nd) {
+                final CompactStore store = InMemory.this.store;
+                final int idx = store.copy(sourceIndex(nd.parent()), nd);
+                if (null == nd.parent()) {
+                    store.node(idx).setTag(DIR_TAG_NAME, this);
+                }
+                final int rpos = find(this.recent, this.recentLen, name);
+                if (0 <= rpos) {
+                    this.recent[rpos] = idx;
+                    return;
+                }
+                final int mpos = find(this.main, this.mainLen, name);
+                if (0 <= mpos) {
+                    this.main[mpos] = idx;
+                    return;
+                }
+                final int ins = -rpos - 1;
+                if (this.recentLen == this.recent.length) {
+                    this.recent = Arrays.copyOf(this.recent, Math.max(16, this.recentLen << 1));
+                }
+                System.arraycopy(this.recent, ins, this.recent, ins + 1, this.recentLen - ins);
+                this.recent[ins] = idx;
+                if (++this.recentLen > Math.max(16, (int)Math.sqrt(this.mainLen))) {
+                    mergeRecent();
+                }
+            }
+
+            int fileCount() {
+                return this.mainLen + this.recentLen;
+            }
+
+            int compare(int idx0, int idx1) {
+                final CompactStore store = InMemory.this.store;
+                return InMemory.this.cmp.compare(store.name(idx0), store.name(idx1));
+            }
+
+            /** @return Position of the name, or (-(insertion point) - 1). */
+            int find(int[] idxs, int len, String name) {
+                final CompactStore store = InMemory.this.store;
+                int lo = 0, hi = len - 1;
+                while (lo <= hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    final int c = InMemory.this.cmp.compare(store.name(idxs[mid]), name);
+                    if (0 > c) {
+                        lo = mid + 1;
+                    }
+                    else if (0 < c) {
+                        hi = mid - 1;
+                    }
+                    else {
+                        return mid;
+                    }
+                }
+                return -lo - 1;
+            }
+
+            void mergeRecent() {
+                final int[] merged = new int[this.mainLen + this.recentLen];
+                int m = 0, r = 0, i = 0;
+                while (m < this.mainLen && r < this.recentLen) {
+                    merged[i++] = 0 > compare(this.main[m], this.recent[r]) ?
+                                  this.main[m++] : this.recent[r++];
+                }
+                System.arraycopy(this.main, m, merged, i, this.mainLen - m);
+                i += this.mainLen - m;
+                System.arraycopy(this.recent, r, merged, i, this.recentLen - r);
+                this.main      = merged;
+                this.mainLen   = merged.length;
+                this.recentLen = 0;
+            }
+
+            /** @return Index of the copy of a source directory in the store. */
+            int sourceIndex(FileNode src) {
+                if (null == src) {
+                    return FileNodeStore.NONE;
+                }
+                if (null == this.srcs) {
+                    this.srcs = new IdentityHashMap<>(2);
+                }
+                Integer result = this.srcs.get(src);
+                if (null == result) {
+                    final CompactStore store = InMemory.this.store;
+                    final FileNode pp = src.parent();
+                    result = store.copy(null == pp ? FileNodeStore.NONE : store.add(pp), src);
+                    store.node(result).setTag(DIR_TAG_NAME, this);
+                    this.srcs.put(src, result);
+                }
+                return result;
+            }
+        }
+
         public Directory root() {
             return this.root;
         }
 
-        // TODO: a bit of a design flaw, the addition should always be the same,
-        //       only the storage of the nodes would be abstracted, revisit...
-
         public boolean add(List<FileNode> nodes, FileNode bottom,
                            Directory parent, Callback cb) throws IOException {
             if (0 == nodes.size()) {
@@ -248,7 +456,7 @@ public abstract class FileRegistrar {
             }
             final FileNode node = nodes.get(0);
             final boolean self = bottom == node;
-            FileNode nd = self ? node : node.parent;
+            FileNode nd = self ? node : node.parent();
             int pathDepth = 0; // excluding the file node
             for (;;) {
                 pathDepth++;
@@ -268,23 +476,23 @@ public abstract class FileRegistrar {
                     pathDepth--;
                     break;
                 }
-                nd = nd.parent;
+                nd = nd.parent();
             }
             if (pathDepth > this.nodePath.length) {
                 this.nodePath = new FileNode[pathDepth << 1];
             }
             FileNode[] nodePath = this.nodePath;
-            nd = node.parent;
+            nd = node.parent();
             for (int i = pathDepth - 1; i >= 0; i--) {
                 nodePath[i] = nd;
-                nd = nd.parent;
+                nd = nd.parent();
             }
             Dir dir = null == parent ? this.root : (Dir)parent;
             for (int i = 0; i < pathDepth; i++) {
                 nd = nodePath[i];
                 Dir dir2 = (Dir)(dir.dirs.get(nd.name()));
                 if (null == dir2) {
-                    dir2 = new Dir(nd, dir);
+                    dir2 = newDir(nd, dir);
                     dir.dirs.put(nd.name(), dir2);
                 }
                 else {
@@ -318,7 +526,7 @@ public abstract class FileRegistrar {
             }
             FileNode nd2_2 = null;
             for (FileNode nd2 : nodes) {
-                if (null != nd2_2 && nd2.parent != nd2_2.parent) {
+                if (null != nd2_2 && nd2.parent() != nd2_2.parent()) {
                     throw new IOException("node link conflict");
                 }
                 nd2_2 = nd2;
@@ -342,12 +550,12 @@ public abstract class FileRegistrar {
                         }
                     }
                     if (replace) {
-                        Dir emptyDir = new Dir(nd2, dir);
+                        Dir emptyDir = newDir(nd2, dir);
                         dir.dirs.put(nd2.name(), emptyDir);
                     }
                 }
                 else {
-                    FileNode nd3 = dir.files.get(nd2.name());
+                    FileNode nd3 = dir.file(nd2.name());
                     boolean replace = true;
                     if (null != nd3) {
                         switch(cb.onMerge(new FileNode[] { nd3 }, nd2)) {
@@ -357,8 +565,8 @@ public abstract class FileRegistrar {
                         }
                     }
                     if (replace) {
+                        dir.putFile(nd2.name(), nd2);
                         nd2.setTag(DIR_TAG_NAME, dir);
-                        dir.files.put(nd2.name(), nd2);
                     }
                 }
             }
@@ -449,59 +657,327 @@ public abstract class FileRegistrar {
         List    <FileNode> items = new ArrayList<>();
 
         itrs.push(new Combo.Two<>(itr, items));
+        try {
+            for(;;) {
+                if (itr.hasNext()) {
+                    FileNode fn = itr.next();
+
+                    if (bottom        == dir &&
+                        bottom.name() == null) {
+                        bottom = fn.parent();  // the '.' case
+                    }
+
+                    if (fn.hasAttributes(FileNode.ATTR_DIRECTORY)) {
+                        if (!inclSubDirs) {
+                            continue;
+                        }
+                        if (!bcb.onProgress(fn)) {
+                            return BULKERR_ABORTED;
+                        }
+                        Iterator<FileNode> itr2 = fsys.list(fn, bcb);
+                        if (itr2.hasNext()) {
+                            itrs.push(new Combo.Two<>(
+                                    itr   = itr2,
+                                    items = new ArrayList<>()));
+                        }
+                        else if (addEmptyDirs) {
+                            items.add(fn);
+                        }
+                    }
+                    else {
+                        items.add(fn);
+                        result++;
+                    }
+                }
+                else {
+                    if (0 == items.size()   &&
+                        addEmptyDirs        &&
+                         dir.name() != null &&
+                        !dir.hasAttributes(FileNode.ATTR_ROOT)) {
+                        items.add(dir); // special case when bottom dir is all empty
+                    }
+                    if (0 < items.size()) {
+                        if (!freg.add(items, bottom, parent, bcb)) {
+                            return BULKERR_COLLISION;
+                        }
+                    }
+                    itrs.pop();
+                    if (itrs.empty()) {
+                        break;
+                    }
+                    itr   = itrs.peek().t;
+                    items = itrs.peek().u;
+                }
+            }
+        }
+        finally {
+            // only left over if we bailed out early
+            for (Combo.Two<Iterator<FileNode>, List<FileNode>> itr2 : itrs) {
+                close(itr2.t);
+            }
+        }
+        return result;
+    }
 
-        for(;;) {
-            if (itr.hasNext()) {
-                FileNode fn = itr.next();
+    /** Releases an iterator's resources, in case it holds any. */
+    static void close(Iterator<?> itr) {
+        if (itr instanceof Closeable cls) {
+            try {
+                cls.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
 
-                if (bottom        == dir &&
-                    bottom.name() == null) {
-                    bottom = fn.parent();  // the '.' case
+    /**
+     * Parallel version of bulk registration. Directories get listed
+     * concurrently on the given pool, while the nodes still get added to the
+     * registrar in the very same order as bulk() would do it, on the caller's
+     * thread. Progress and filter callbacks are made from the pool's threads,
+     * yet never concurrently, and never after the call returned. The file
+     * system must support concurrent listing. If a listing fails its error
+     * gets thrown, even if other listings got aborted because of it.
+     * @param pool The pool to list directories on, null for running bulk().
+     * @see #bulk(FileRegistrar, FileNode, FileNode, Directory, BulkCallbacks, boolean, boolean)
+     */
+    public static int bulk(FileRegistrar freg,
+                           FileNode      dir,
+                           FileNode      bottom,
+                           Directory     parent,
+                           BulkCallbacks bcb,
+                           boolean       inclSubDirs,
+                           boolean       addEmptyDirs,
+                           ForkJoinPool  pool) throws IOException {
+        if (null == pool) {
+            return bulk(freg, dir, bottom, parent, bcb, inclSubDirs, addEmptyDirs);
+        }
+        if (!dir.hasAttributes(FileNode.ATTR_DIRECTORY)) {
+            return BULKERR_INTERNAL;
+        }
+        if (!bcb.onProgress(dir)) {
+            return BULKERR_ABORTED;
+        }
+        final Scan scan = new Scan(dir.fileSystem(), bcb, inclSubDirs);
+        final Listing top = new Listing(scan, dir);
+        scan.started.add(top);
+        pool.execute(top);
+        try {
+            return new Merger(scan, freg, dir, bottom, parent, bcb, addEmptyDirs).mergeAll(top);
+        }
+        finally {
+            // stop any listing still going on if we bailed out early, and wait
+            // for them, so no callbacks get made after we returned
+            scan.abort = true;
+            for (Listing lst : scan.started) {
+                lst.quietlyJoin();
+            }
+        }
+    }
+
+    /** State shared by all of the listings of a parallel bulk registration. */
+    static class Scan implements FileSystem.Filter {
+        final FileSystem    fsys;
+        final BulkCallbacks bcb;
+        final boolean       inclSubDirs;
+        volatile boolean    abort;
+        /** The first listing error, which caused all of the others to abort. */
+        IOException err;
+        /** All of the listings which got scheduled. */
+        final ConcurrentLinkedQueue<Listing> started = new ConcurrentLinkedQueue<>();
+
+        Scan(FileSystem fsys, BulkCallbacks bcb, boolean inclSubDirs) {
+            this.fsys        = fsys;
+            this.bcb         = bcb;
+            this.inclSubDirs = inclSubDirs;
+        }
+
+        public boolean matches(FileNode file) {
+            synchronized(this.bcb) {
+                return !this.abort && this.bcb.matches(file);
+            }
+        }
+
+        boolean onProgress(FileNode current) {
+            synchronized(this.bcb) {
+                return !this.abort && this.bcb.onProgress(current);
+            }
+        }
+
+        synchronized void fail(IOException ioe) {
+            if (null == this.err) {
+                this.err = ioe;
+            }
+            this.abort = true;
+        }
+
+        synchronized IOException error() {
+            return this.err;
+        }
+    }
+
+    /**
+     * The listing of one directory, with the ones of its sub-directories
+     * forked off as soon as they are found.
+     */
+    @SuppressWarnings("serial")
+    static class Listing extends RecursiveAction {
+        final Scan     scan;
+        final FileNode dir;
+        final ArrayList<FileNode> nodes = new ArrayList<>();
+        final ArrayList<Listing>  subs  = new ArrayList<>();
+        /** Set if the listing did not happen, due to an abort. */
+        boolean     aborted;
+        IOException err;
+
+        Listing(Scan scan, FileNode dir) {
+            this.scan = scan;
+            this.dir  = dir;
+        }
+
+        protected void compute() {
+            final Scan scan = this.scan;
+            if (scan.abort) {
+                this.aborted = true;
+                return;
+            }
+            Iterator<FileNode> itr = null;
+            try {
+                itr = scan.fsys.list(this.dir, scan);
+                while (!scan.abort && itr.hasNext()) {
+                    final FileNode fn = itr.next();
+                    this.nodes.add(fn);
+                    if (!fn.hasAttributes(FileNode.ATTR_DIRECTORY) ||
+                        !scan.inclSubDirs) {
+                        continue;
+                    }
+                    final Listing sub = new Listing(scan, fn);
+                    this.subs.add(sub);
+                    if (scan.abort || !scan.onProgress(fn)) {
+                        scan.abort = true;
+                        sub.aborted = true;
+                        continue;
+                    }
+                    scan.started.add(sub);
+                    sub.fork();
                 }
+                // an incomplete listing must not be merged
+                this.aborted = scan.abort;
+            }
+            catch (IOException ioe) {
+                this.err = ioe;
+                scan.fail(ioe);
+            }
+            catch (RuntimeException re) {
+                this.err = new IOException(re);
+                scan.fail(this.err);
+            }
+            finally {
+                close(itr);
+            }
+        }
+    }
+
+    /** Replays the listings in order, exactly like the sequential bulk(). */
+    static class Merger {
+        final Scan          scan;
+        final FileRegistrar freg;
+        final FileNode      dir;
+        final Directory     parent;
+        final BulkCallbacks bcb;
+        final boolean       addEmptyDirs;
+        FileNode bottom;
+        int      result;
+
+        Merger(Scan scan, FileRegistrar freg, FileNode dir, FileNode bottom,
+               Directory parent, BulkCallbacks bcb, boolean addEmptyDirs) {
+            this.scan         = scan;
+            this.freg         = freg;
+            this.dir          = dir;
+            this.bottom       = bottom;
+            this.parent       = parent;
+            this.bcb          = bcb;
+            this.addEmptyDirs = addEmptyDirs;
+        }
 
+        static Listing await(Listing lst) throws IOException {
+            if (!lst.aborted) {
+                lst.join();
+            }
+            if (null != lst.err) {
+                throw lst.err;
+            }
+            return lst;
+        }
+
+        int mergeAll(Listing top) throws IOException {
+            if (await(top).aborted) {
+                return aborted();
+            }
+            final int res = merge(top);
+            return 0 > res ? res : this.result;
+        }
+
+        /** Aborted listings are due to an error elsewhere, if there was one. */
+        int aborted() throws IOException {
+            final IOException err = this.scan.error();
+            if (null != err) {
+                throw err;
+            }
+            return BULKERR_ABORTED;
+        }
+
+        /** @return Zero or a BULKERR_xxx code. */
+        int merge(Listing lst) throws IOException {
+            final List<FileNode> items = new ArrayList<>();
+            int sidx = 0;
+            for (FileNode fn : lst.nodes) {
+                if (this.bottom        == this.dir &&
+                    this.bottom.name() == null) {
+                    this.bottom = fn.parent();  // the '.' case
+                }
                 if (fn.hasAttributes(FileNode.ATTR_DIRECTORY)) {
-                    if (!inclSubDirs) {
-                        continue;
+                    if (sidx == lst.subs.size()) {
+                        continue;   // no sub-directories wanted
                     }
-                    if (!bcb.onProgress(fn)) {
-                        return BULKERR_ABORTED;
+                    final Listing sub = lst.subs.get(sidx++);
+                    if (sub.aborted) {
+                        return aborted();
                     }
-                    Iterator<FileNode> itr2 = fsys.list(fn, bcb);
-                    if (itr2.hasNext()) {
-                        itrs.push(new Combo.Two<>(
-                                itr   = itr2,
-                                items = new ArrayList<>()));
+                    await(sub);
+                    if (sub.aborted) {
+                        return aborted();
+                    }
+                    if (!sub.nodes.isEmpty()) {
+                        final int res = merge(sub);
+                        if (0 > res) {
+                            return res;
+                        }
                     }
-                    else if (addEmptyDirs) {
+                    else if (this.addEmptyDirs) {
                         items.add(fn);
                     }
                 }
                 else {
                     items.add(fn);
-                    result++;
+                    this.result++;
                 }
             }
-            else {
-                if (0 == items.size()   &&
-                    addEmptyDirs        &&
-                     dir.name() != null &&
-                    !dir.hasAttributes(FileNode.ATTR_ROOT)) {
-                    items.add(dir); // special case when bottom dir is all empty
-                }
-                if (0 < items.size()) {
-                    if (!freg.add(items, bottom, parent, bcb)) {
+            if (0 == items.size()        &&
+                this.addEmptyDirs        &&
+                 this.dir.name() != null &&
+                !this.dir.hasAttributes(FileNode.ATTR_ROOT)) {
+                items.add(this.dir); // special case when bottom dir is all empty
+            }
+            if (0 < items.size()) {
+                synchronized(this.bcb) {
+                    if (!this.freg.add(items, this.bottom, this.parent, this.bcb)) {
                         return BULKERR_COLLISION;
                     }
                 }
-                itrs.pop();
-                if (itrs.empty()) {
-                    break;
-                }
-                itr   = itrs.peek().t;
-                items = itrs.peek().u;
             }
+            return 0;
         }
-        return result;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -38,7 +38,9 @@ public interface FileSystem {
      * List all nodes of a directory.
      * @param directory The directory node.
      * @param filter The filter to apply.
-     * @return List of nodes, both files and directories.
+     * @return List of nodes, both files and directories. The iterator might
+     * hold system resources, in which case it is also Closeable. Such ones get
+     * released when the iteration ends, or via close() if it is abandoned.
      * @throws IOException If any error occurred.
      */
     Iterator<FileNode> list(FileNode directory, Filter filter) throws IOException;
@@ -1,29 +1,43 @@
 package de.org.mhahnc.baselib.io;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.org.mhahnc.baselib.util.MiscUtils;
 
 public class IOUtils {
+    /**
+     * Reads a stream completely and closes it.
+     * @param ins The stream to read from.
+     * @return All of the bytes read.
+     * @throws IOException If any error occurred.
+     */
     public static byte[] readStreamBytes(InputStream ins) throws IOException {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-        byte[] buf = new byte[4096];
-        int read;
-        while (0 < (read = ins.read(buf))) {
-            result.write(buf, 0, read);
-        }
-        ins.close();
-        result.close();
+        return readStreamBytes(ins, -1L);
+    }
 
-        return result.toByteArray();
+    /**
+     * Reads a stream completely and closes it.
+     * @param ins The stream to read from.
+     * @param sizeHint The expected number of bytes, or -1 if unknown.
+     * @return All of the bytes read.
+     * @throws IOException If any error occurred.
+     * @see MiscUtils#readInputStream(InputStream, long)
+     */
+    public static byte[] readStreamBytes(InputStream ins, long sizeHint) throws IOException {
+        return MiscUtils.readInputStream(ins, sizeHint);
     }
 
     public static int readAll(InputStream ins,
@@ -186,16 +200,93 @@ public class IOUtils {
         return null;
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+
+    public final static int COPY_BUFSIZE_MIN = 1 << 16;
+    public final static int COPY_BUFSIZE_MAX = 1 << 20;
+
+    final static int COPY_POOL_MAX = 8;
+
+    static volatile int copyBufSize = COPY_BUFSIZE_MIN;
+
+    final static ConcurrentLinkedQueue<byte[]> copyPool = new ConcurrentLinkedQueue<>();
+    final static AtomicInteger copyPoolSize = new AtomicInteger();
+
+    /**
+     * Sets the size of the buffers used for copying, which get pooled and
+     * thus are not allocated for every copy operation.
+     * @param size The buffer size, from COPY_BUFSIZE_MIN to COPY_BUFSIZE_MAX.
+     */
+    public static void setCopyBufferSize(int size) {
+        if (size < COPY_BUFSIZE_MIN ||
+            size > COPY_BUFSIZE_MAX) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal copy buffer size (%d)", size));
+        }
+        copyBufSize = size;
+        copyPool.clear();
+        copyPoolSize.set(0);
+    }
+
+    /** @return The current size of the copy buffers. */
+    public static int copyBufferSize() {
+        return copyBufSize;
+    }
+
+    static byte[] acquireCopyBuffer() {
+        final byte[] result = copyPool.poll();
+        if (null != result) {
+            copyPoolSize.decrementAndGet();
+            if (result.length == copyBufSize) {
+                return result;
+            }
+        }
+        return new byte[copyBufSize];
+    }
+
+    static void releaseCopyBuffer(byte[] buf) {
+        if (buf.length != copyBufSize) {
+            return;
+        }
+        if (copyPoolSize.incrementAndGet() <= COPY_POOL_MAX) {
+            copyPool.offer(buf);
+        }
+        else {
+            copyPoolSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * Copies all of the data from one stream to another. If both of them are
+     * file streams the data gets transferred by the channels directly, meaning
+     * it might never have to pass through the Java heap.
+     * @param is The stream to read from.
+     * @param os The stream to write to.
+     * @param close True to close both streams at the end.
+     * @return False if closing failed.
+     * @throws IOException If any error occurred.
+     */
     public static boolean copy(InputStream is, OutputStream os, boolean close) throws IOException {
         boolean result = true;
         try {
-            final byte[] buf = new byte[4096];
-            for (;;) {
-                final int read = is.read(buf);
-                if (-1 == read) {
-                    break;
+            if (is instanceof FileInputStream &&
+                os instanceof FileOutputStream) {
+                transfer(((FileInputStream)is).getChannel(),
+                         ((FileOutputStream)os).getChannel());
+            }
+            // whatever the channels did not get (e.g. pipes) goes the usual way
+            final byte[] buf = acquireCopyBuffer();
+            try {
+                for (;;) {
+                    final int read = is.read(buf);
+                    if (-1 == read) {
+                        break;
+                    }
+                    os.write(buf, 0, read);
                 }
-                os.write(buf, 0, read);
+            }
+            finally {
+                releaseCopyBuffer(buf);
             }
         }
         finally {
@@ -207,12 +298,66 @@ public class IOUtils {
         return result;
     }
 
+    /**
+     * Transfers the rest of a file channel, from its current position, to
+     * another one.
+     * @param in The channel to read from.
+     * @param out The channel to write to, at its current position.
+     * @return Number of bytes transferred.
+     * @throws IOException If any error occurred.
+     */
+    public static long transfer(FileChannel in, FileChannel out) throws IOException {
+        final long start = in.position();
+        long pos = start;
+        for (final long end = in.size(); pos < end;) {
+            final long sent = in.transferTo(pos, end - pos, out);
+            if (0L >= sent) {
+                break;
+            }
+            pos += sent;
+        }
+        in.position(pos);
+        return pos - start;
+    }
+
+    /**
+     * Copies a file, using channel transfers.
+     * @param src The file to copy.
+     * @param dst The file to create or overwrite.
+     * @return Number of bytes copied.
+     * @throws IOException If any error occurred.
+     */
+    public static long copy(File src, File dst) throws IOException {
+        try (FileChannel in  = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dst.toPath(),
+                     StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            long pos = 0L;
+            while (pos < size) {
+                final long recv = out.transferFrom(in, pos, size - pos);
+                if (0L >= recv) {
+                    break;
+                }
+                pos += recv;
+            }
+            return pos;
+        }
+    }
+
+    final static int DUMP_BUFSIZE = 1 << 16;
+
     public static boolean dumpBlockDevice(BlockDevice bdev, OutputStream os) {
         try {
-            byte[] blk = new byte[bdev.blockSize()];
-            for (long num = 0L, end = bdev.size(); num < end; num++) {
-                bdev.read(num,  blk, 0);
-                os.write(blk);
+            final int bsz = bdev.blockSize();
+            final int blks = Math.max(1, DUMP_BUFSIZE / bsz);
+            byte[] buf = new byte[blks * bsz];
+            for (long num = 0L, end = bdev.size(); num < end;) {
+                final int count = (int)Math.min(blks, end - num);
+                bdev.readBlocks(num, count, buf, 0);
+                os.write(buf, 0, count * bsz);
+                num += count;
             }
             return true;
         }
@@ -1,11 +1,22 @@
 package de.org.mhahnc.baselib.io;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 public class LocalFileSystem implements FileSystem {
     static boolean _caseSensitive = 0 == new File("a").compareTo(new File("A"));
@@ -37,10 +48,84 @@ public class LocalFileSystem implements FileSystem {
             this.attributes |= root ? ATTR_ROOT : 0;
             return this;
         }
+        /**
+         * Initializes a node with just its name, the rest gets loaded on
+         * demand. Filters looking at names only thus never cause the file to
+         * be accessed.
+         */
+        public FNode initialize(Path path, FileNode parent) {
+            this.parent = parent;
+            this.name   = path.getFileName().toString();
+            this.lazy   = path;
+            return this;
+        }
+        void load() {
+            final Path path = this.lazy;
+            if (null == path) {
+                return;
+            }
+            BasicFileAttributes bfa;
+            try {
+                bfa = Files.readAttributes(path, _attrsClass);
+            }
+            catch (IOException | UnsupportedOperationException e) {
+                bfa = null;
+            }
+            int attrs = 0;
+            if (null == bfa) {
+                // same as what java.io.File reports for vanished objects
+                this.size      = 0L;
+                this.timestamp = 0L;
+                attrs = ATTR_READONLY;
+            }
+            else {
+                this.size      = bfa.size();
+                this.timestamp = bfa.lastModifiedTime().toMillis();
+                attrs |= bfa.isDirectory() ? ATTR_DIRECTORY : 0;
+                if (bfa instanceof DosFileAttributes dfa) {
+                    attrs |= dfa.isReadOnly() ? ATTR_READONLY : 0;
+                    attrs |= dfa.isHidden  () ? ATTR_HIDDEN   : 0;
+                    attrs |= Files.isExecutable(path) ? ATTR_EXECUTE : 0;
+                }
+                else {
+                    // (the permission bits miss read-only mounts and ACLs)
+                    attrs |= this.name.startsWith(".") ? ATTR_HIDDEN : 0;
+                    attrs |= Files.isWritable  (path) ? 0 : ATTR_READONLY;
+                    attrs |= Files.isExecutable(path) ? ATTR_EXECUTE : 0;
+                }
+            }
+            this.attributes |= attrs;
+            // (publishes the fields, threads racing here just load twice)
+            this.lazy = null;
+        }
+        public long size() {
+            load();
+            return this.size;
+        }
+        public long timestamp() {
+            load();
+            return this.timestamp;
+        }
+        public int attributes() {
+            load();
+            return this.attributes;
+        }
         public String link() {
             return this.link;
         }
         String link;
+        /** Where to load the properties from, null once they got loaded. */
+        volatile Path lazy;
+    }
+
+    /** Attributes to read, so that one call gets everything needed. */
+    final static Class<? extends BasicFileAttributes> _attrsClass;
+
+    static {
+        final Set<String> views = FileSystems.getDefault().supportedFileAttributeViews();
+        // (Linux offers a DOS view too, but that's not what java.io.File uses)
+        _attrsClass = views.contains("dos") && !views.contains("posix") ?
+                      DosFileAttributes.class : BasicFileAttributes.class;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -103,18 +188,98 @@ public class LocalFileSystem implements FileSystem {
         }
     }
 
+    /**
+     * Iterates over the entries of a directory stream, as the system delivers
+     * them. Nodes come with their names only, attributes get read when asked
+     * for. The stream gets closed at the end of the iteration, or if the
+     * iterator gets closed early.
+     */
+    class StreamIterator implements Iterator<FileNode>, Closeable {
+        FileNode next;
+        FileNode parent;
+        String   link;
+        Filter   filter;
+        DirectoryStream<Path> dstrm;
+        Iterator<Path>        itr;
+
+        public StreamIterator(FileNode parent, DirectoryStream<Path> dstrm, Filter filter) {
+            boolean nn = null == parent ? false : (null == parent.name());
+            this.parent = nn ? null : parent;
+            this.link   = nn ? parent.link() : null;
+            this.filter = filter;
+            this.dstrm  = dstrm;
+            this.itr    = dstrm.iterator();
+            lookup();
+        }
+
+        void lookup() {
+            while (null != this.itr) {
+                final Path path;
+                try {
+                    if (!this.itr.hasNext()) {
+                        break;
+                    }
+                    path = this.itr.next();
+                }
+                catch (DirectoryIteratorException die) {
+                    break;  // like listFiles() we just don't see the rest
+                }
+                final FNode fnode = new FNode().initialize(path, this.parent);
+                fnode.link = this.link;
+                if (null == this.filter || this.filter.matches(fnode)) {
+                    this.next = fnode;
+                    return;
+                }
+            }
+            close();
+        }
+
+        public void close() {
+            this.next = null;
+            if (null != this.itr) {
+                this.itr = null;
+                try {
+                    this.dstrm.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return null != this.next;
+        }
+
+        public FileNode next() {
+            FileNode result = this.next;
+
+            if (null == result) {
+                throw new NoSuchElementException();
+            }
+
+            lookup();
+
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     public Iterator<FileNode> list(FileNode directory, Filter filter) throws IOException {
         String path = directory.path(true);
-        File dir = new File(path);
-        File[] files = dir.listFiles();
-        files = null == files ? new File[0] : files;
-        return new NodeIterator(
-                directory,
-                files,
-                filter,
-                false);
+        DirectoryStream<Path> dstrm;
+        try {
+            dstrm = Files.newDirectoryStream(Paths.get(path));
+        }
+        catch (IOException | InvalidPathException e) {
+            // not a directory, not accessible etc, same as listFiles() giving null
+            return new NodeIterator(directory, new File[0], filter, false);
+        }
+        return new StreamIterator(directory, dstrm, filter);
     }
 
     public void remove(FileNode obj) throws IOException {
@@ -251,21 +416,23 @@ public class LocalFileSystem implements FileSystem {
             }
         }
         if (_caseSensitive) {
-            if (!node1.name.equals(node2.name)) {
+            if (!node1.name().equals(node2.name())) {
                 return false;
             }
         }
         else {
-            if (!node1.name.equalsIgnoreCase(node2.name)) {
+            if (!node1.name().equalsIgnoreCase(node2.name())) {
                 return false;
             }
         }
         if (recursive) {
-            if (null == node1.parent ^ null == node2.parent) {
+            final FileNode parent1 = node1.parent();
+            final FileNode parent2 = node2.parent();
+            if (null == parent1 ^ null == parent2) {
                 return false;
             }
-            else if (null != node1.parent) {
-                return areNodesEqual(node1.parent, node2.parent, recursive, false);
+            else if (null != parent1) {
+                return areNodesEqual(parent1, parent2, recursive, false);
             }
         }
         return true;
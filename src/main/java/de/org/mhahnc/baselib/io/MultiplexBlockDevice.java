@@ -1,18 +1,158 @@
 package de.org.mhahnc.baselib.io;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 
 /**
  * Block device layer which allows processing of block data in an ordered, but
- * multi-threaded fashion. Only write operations are multiplex at this moment.
+ * multi-threaded fashion. Write operations are always multiplexed, reads only
+ * if read-ahead got enabled.
+ * <p>
+ * The buffers form a ring, which is processed in three stages: the caller
+ * fills the buffer at the head, the buffer threads transform the filled ones
+ * and the drain stage writes out the transformed buffers in their original
+ * order. The stages hand over buffers via atomic states and sequence counters,
+ * waiting threads spin for a while and then get parked. Draining happens on
+ * the caller's thread, or with write-behind enabled on a dedicated writer
+ * thread, so transformation and the actual I/O can overlap. Instead of
+ * having threads of its own the device can also schedule all of the work as
+ * tasks on a given executor.
  */
 public final class MultiplexBlockDevice implements BlockDevice {
     final Buffer[] bufs;
 
     BlockDevice bdev;
 
-    int idx;
+    final boolean readAhead;
+    final int     maxPending;
+    final int     spins;
+
+    /** Number of buffers handed over to the transform stage. */
+    final AtomicLong filled  = new AtomicLong();
+    /** Number of buffers written out by the drain stage. */
+    final AtomicLong drained = new AtomicLong();
+
+    final AtomicLong stalls     = new AtomicLong();
+    final AtomicLong stallNanos = new AtomicLong();
+    volatile int     maxDepth;
+
+    volatile Thread waiter;
+
+    final Writer   writer;
+    final Executor executor;
+
+    boolean raActive;
+    int     raIdx;
+    long    raNext;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Additional, optional settings.
+     */
+    public static class Options {
+        boolean readAhead;
+        int     maxPending = -1;
+        int     spins      = 100;
+        boolean writeBehind;
+        Executor executor;
+
+        /**
+         * @param readAhead True to let reads prefetch the following blocks and
+         * run them through the filters on the buffer threads. Only useful for
+         * sequential reading, random access causes the prefetched data to be
+         * thrown away.
+         * @return This instance.
+         */
+        public Options readAhead(boolean readAhead) {
+            this.readAhead = readAhead;
+            return this;
+        }
+
+        /**
+         * @param maxPending The number of filled buffers which might be queued,
+         * in transformation or waiting to be written out, before the caller
+         * gets blocked. Capped by the number of buffers, which is also the
+         * default.
+         * @return This instance.
+         */
+        public Options maxPending(int maxPending) {
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * @param spins How often a waiting thread checks for a state change
+         * before it gets parked. Higher numbers lower the latency of handing
+         * over buffers, at the expense of burning CPU time.
+         * @return This instance.
+         */
+        public Options spins(int spins) {
+            this.spins = spins;
+            return this;
+        }
+
+        /**
+         * @param writeBehind True to write out the transformed buffers on a
+         * dedicated thread, so the caller does not have to wait for the
+         * underlying device. Errors then get reported by the next write or
+         * the closing of the device.
+         * @return This instance.
+         */
+        public Options writeBehind(boolean writeBehind) {
+            this.writeBehind = writeBehind;
+            return this;
+        }
+
+        /**
+         * @param executor Executor to run the transformations (and the
+         * write-behind draining) on, instead of creating threads for every
+         * device. The executor is not owned by the device, thus it does not get
+         * shut down on closing. Pass null to use dedicated threads again.
+         * @return This instance.
+         */
+        public Options executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+    }
+
+    /**
+     * Snapshot of the pipeline counters.
+     */
+    public static class Stats {
+        /** Number of buffers which got passed to transformation. */
+        public final long batches;
+        /** Number of buffers currently in flight. */
+        public final int  depth;
+        /** Maximum number of buffers ever in flight. */
+        public final int  maxDepth;
+        /** How many times the caller had to wait for a buffer. */
+        public final long stalls;
+        /** Total time the caller spent waiting, in nanoseconds. */
+        public final long stallNanos;
+
+        Stats(long batches, int depth, int maxDepth, long stalls, long stallNanos) {
+            this.batches    = batches;
+            this.depth      = depth;
+            this.maxDepth   = maxDepth;
+            this.stalls     = stalls;
+            this.stallNanos = stallNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("batches=%d, depth=%d, maxdepth=%d, stalls=%d, stalltime=%dms",
+                    this.batches, this.depth, this.maxDepth,
+                    this.stalls, this.stallNanos / 1000000L);
+        }
+    }
 
     ///////////////////////////////////////////////////////////////////////////
 
@@ -33,14 +173,49 @@ public final class MultiplexBlockDevice implements BlockDevice {
                                 BlockDevice bdev,
                                 int bufCount,
                                 int bufSize) throws IOException {
+        this(bffact, bdev, bufCount, bufSize, new Options());
+    }
+
+    /**
+     * Ctor with options.
+     * @see #MultiplexBlockDevice(Filter.Factory, BlockDevice, int, int)
+     * @param bffact The filter factory to use.
+     * @param bdev The block device to read or write to.
+     * @param bufCount Number of buffers to use.
+     * @param bufSize The number of blocks to buffer.
+     * @param opts The options to apply.
+     * @throws IOException If any error occurred.
+     */
+    public MultiplexBlockDevice(BlockDevice.Filter.Factory bffact,
+                                BlockDevice bdev,
+                                int bufCount,
+                                int bufSize,
+                                Options opts) throws IOException {
         bffact.initialize(bdev.blockSize());
 
         this.bdev = bdev;
 
         bufCount = Math.max(1, bufCount);
+
+        this.readAhead  = opts.readAhead && !bdev.writeOnly();
+        this.maxPending = 0 >= opts.maxPending ? bufCount :
+                          Math.min(bufCount, opts.maxPending);
+        this.spins      = Math.max(0, opts.spins);
+        this.executor   = opts.executor;
+
         this.bufs = new Buffer[bufCount];
         for (int i = 0; i < bufCount; i++) {
-            (this.bufs[i] = new Buffer(bufSize, i, bffact)).start();
+            this.bufs[i] = new Buffer(bufSize, i, bffact);
+        }
+        this.writer = opts.writeBehind && !bdev.readOnly() ? new Writer() : null;
+
+        if (null == this.executor) {
+            for (Buffer buf : this.bufs) {
+                buf.thrd.start();
+            }
+            if (null != this.writer) {
+                this.writer.thrd.start();
+            }
         }
     }
 
@@ -71,12 +246,29 @@ public final class MultiplexBlockDevice implements BlockDevice {
         return this.bdev.writeOnly();
     }
 
+    /** @return The current pipeline counters. */
+    public Stats stats() {
+        final long drained = this.drained.get();
+        return new Stats(this.filled.get(),
+                         (int)(this.filled.get() - drained),
+                         this.maxDepth,
+                         this.stalls.get(),
+                         this.stallNanos.get());
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     public static boolean __TEST_sync_process;
     public static Integer __TEST_run_delay;
 
-    class Buffer extends Thread {
+    /** Buffer is owned by the caller (being filled or drained). */
+    final static int STATE_FREE   = 0;
+    /** Buffer is waiting for or in transformation. */
+    final static int STATE_QUEUED = 1;
+    /** Buffer got transformed, waiting to be drained. */
+    final static int STATE_DONE   = 2;
+
+    class Buffer implements Runnable {
         final int sz;
         final int bsz = MultiplexBlockDevice.this.bdev.blockSize();
 
@@ -86,15 +278,20 @@ public final class MultiplexBlockDevice implements BlockDevice {
         final byte[] buf;
         final long[] nums;
 
+        final Thread thrd;
+
+        final AtomicInteger state = new AtomicInteger(STATE_FREE);
+
+        volatile boolean ended;
+
         IOException ioerr;
         int         pos;
 
-        AtomicInteger busy = new AtomicInteger();
+        boolean reading;
+        long    first;
 
         public Buffer(int sz, int num,
                       BlockDevice.Filter.Factory bffact) {
-            super("MBD.Buffer" + num);
-
             this.fwrite = MultiplexBlockDevice.this.bdev.readOnly () ? null : bffact.createWrite();
             this.fread  = MultiplexBlockDevice.this.bdev.writeOnly() ? null : bffact.createRead();
 
@@ -102,91 +299,87 @@ public final class MultiplexBlockDevice implements BlockDevice {
 
             this.buf  = new byte[sz * this.bsz];
             this.nums = new long[sz];
+
+            this.thrd = null != MultiplexBlockDevice.this.executor ? null :
+                        new Thread(this, "MBD.Buffer" + num);
         }
 
         public void end() {
-            synchronized(this.buf) {
-                this.busy.set(-1);
-                this.buf.notify();
+            this.ended = true;
+            if (null != this.thrd) {
+                LockSupport.unpark(this.thrd);
             }
         }
 
         public void run() {
             for (;;) {
-                if (0 == this.busy.get()) {
-                    synchronized(this.buf) {
-                        while (0 == this.busy.get()) {
-                            try {
-                                this.buf.wait();
-                            }
-                            catch (InterruptedException ire) {
-                                return;
-                            }
-                        }
-                        if (-1 == this.busy.get()) {
-                            return;
-                        }
-                    }
-                }
-
-                try {
-                    for (int i = 0; i < this.pos; i++) {
-                        long num = this.fwrite.map(this.nums[i]);
-                        this.nums[i] = num;
-                        this.fwrite.transform(
-                                num,
-                                this.buf,
-                                this.bsz * i);
-
-                    }
-                }
-                catch (IOException ioe) {
-                    this.ioerr = ioe;
-                }
-
-                if (null != MultiplexBlockDevice.__TEST_run_delay) {
-                    try { Thread.sleep(MultiplexBlockDevice.__TEST_run_delay); }
-                    catch (InterruptedException ire) { }
-                }
-
-                synchronized(this.buf) {
-                    this.buf.notify();
-                    if (-1 == this.busy.get()) {
+                while (STATE_QUEUED != this.state.get()) {
+                    if (this.ended) {
                         return;
                     }
-                    this.busy.set(0);
+                    LockSupport.park(this);
                 }
+                transform();
             }
         }
 
-        void notbusy(boolean closing, boolean err) throws IOException {
-            if (1 == this.busy.get()) {
-                synchronized(this.buf) {
-                    while(1 == this.busy.get()) {
-                        try {
-                            this.buf.wait();
-                        }
-                        catch (InterruptedException ire) {
-                            throw new IOException(ire);
-                        }
-                    }
+        void transform() {
+            try {
+                // read data got mapped already, just needs to be transformed
+                if (this.reading) {
+                    this.fread.transformBatch(
+                            this.nums,
+                            this.pos,
+                            this.buf,
+                            0,
+                            this.bsz);
                 }
-                if (null != this.ioerr) {
-                    throw this.ioerr;
+                else {
+                    for (int i = 0; i < this.pos; i++) {
+                        this.nums[i] = this.fwrite.map(this.nums[i]);
+                    }
+                    this.fwrite.transformBatch(
+                            this.nums,
+                            this.pos,
+                            this.buf,
+                            0,
+                            this.bsz);
                 }
             }
-            if (err) {
-                return;
+            catch (IOException ioe) {
+                this.ioerr = ioe;
+            }
+
+            if (null != MultiplexBlockDevice.__TEST_run_delay) {
+                try { Thread.sleep(MultiplexBlockDevice.__TEST_run_delay); }
+                catch (InterruptedException ire) { }
             }
-            if (full() || closing) {
-                flush();
+
+            this.state.set(STATE_DONE);
+
+            final Writer writer = MultiplexBlockDevice.this.writer;
+            if (null != writer) {
+                writer.signal();
             }
+            wakeup();
         }
 
         void process() {
-            synchronized(this.buf) {
-                this.busy.set(1);
-                this.buf.notify();
+            this.state.set(STATE_QUEUED);
+            if (null != this.thrd) {
+                LockSupport.unpark(this.thrd);
+                return;
+            }
+            try {
+                MultiplexBlockDevice.this.executor.execute(this::transform);
+            }
+            catch (RejectedExecutionException ree) {
+                this.ioerr = new IOException(ree);
+                this.state.set(STATE_DONE);
+                final Writer writer = MultiplexBlockDevice.this.writer;
+                if (null != writer) {
+                    writer.signal();
+                }
             }
         }
 
@@ -194,88 +387,399 @@ public final class MultiplexBlockDevice implements BlockDevice {
             return this.pos == this.sz;
         }
 
-        boolean add(long num, byte[] block, int ofs) throws IOException {
-            notbusy(false, false);
+        /**
+         * Loads the next read window and gets it transformed.
+         * @param first Logical number of the first block.
+         * @return Number of blocks loaded.
+         */
+        int load(long first) throws IOException {
+            awaitIdle(this);
+
+            this.reading = false;
+            this.pos     = 0;
+            this.state.set(STATE_FREE);
+
+            final int count = (int)Math.min(this.sz,
+                    Math.max(0L, MultiplexBlockDevice.this.bdev.size() - first));
+            for (int i = 0; i < count; i++) {
+                this.nums[i] = this.fread.map(first + i);
+            }
+            for (int i = 0, j; i < count; i = j) {
+                final long num = this.nums[i];
+                for (j = i + 1; j < count && this.nums[j] == num + (j - i); j++);
+                MultiplexBlockDevice.this.bdev.readBlocks(
+                        num,
+                        j - i,
+                        this.buf,
+                        i * this.bsz);
+            }
+            this.ioerr   = null;
+            this.first   = first;
+            this.pos     = count;
+            this.reading = true;
+            if (0 < count) {
+                process();
+            }
+            return count;
+        }
+
+        /**
+         * Tries to get a block out of the read window.
+         * @return True if the block got copied, false if it's not in here.
+         */
+        boolean fetch(long num, byte[] block, int ofs) throws IOException {
+            if (!this.reading || num < this.first || num >= this.first + this.pos) {
+                return false;
+            }
+            awaitIdle(this);
+            if (null != this.ioerr) {
+                throw this.ioerr;
+            }
+            System.arraycopy(this.buf,
+                             (int)(num - this.first) * this.bsz,
+                             block,
+                             ofs,
+                             this.bsz);
+            return true;
+        }
+
+        int add(long first, int count, byte[] block, int ofs) {
+            final int result = Math.min(count, this.sz - this.pos);
 
             System.arraycopy(block,
                              ofs,
                              this.buf,
                              this.bsz * this.pos,
-                             this.bsz);
+                             this.bsz * result);
 
-            this.nums[this.pos] = num;
+            for (int i = 0; i < result; i++) {
+                this.nums[this.pos++] = first + i;
+            }
+            return result;
+        }
 
-            ++this.pos;
+        void flush() throws IOException {
+            // the mapped block numbers are usually still consecutive, so write
+            // them in as few runs as possible
+            for (int i = 0, j; i < this.pos; i = j) {
+                final long num = this.nums[i];
+                for (j = i + 1; j < this.pos && this.nums[j] == num + (j - i); j++);
+                MultiplexBlockDevice.this.bdev.writeBlocks(
+                        num,
+                        j - i,
+                        this.buf,
+                        i * this.bsz);
+            }
+            this.pos = 0;
+        }
+    }
 
-            if (full()) {
-                process();
-                if (__TEST_sync_process) {
-                    while (1 == this.busy.get()) {
-                        try { Thread.sleep(1); }
-                        catch (InterruptedException ignored) { }
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Waits for a buffer to leave the transformation stage.
+     * @param buf The buffer.
+     * @throws IOException If the waiting got interrupted.
+     */
+    void awaitIdle(Buffer buf) throws IOException {
+        if (STATE_QUEUED != buf.state.get()) {
+            return;
+        }
+        await(() -> STATE_QUEUED != buf.state.get());
+    }
+
+    /**
+     * Lets the caller wait for a condition, which gets signaled by the other
+     * stages via wakeup().
+     * @param cond The condition to wait for.
+     * @throws IOException If the waiting got interrupted.
+     */
+    void await(BooleanSupplier cond) throws IOException {
+        if (cond.getAsBoolean()) {
+            return;
+        }
+        final long t0 = System.nanoTime();
+        for (int spin = 0; !cond.getAsBoolean(); spin++) {
+            if (spin < this.spins) {
+                Thread.onSpinWait();
+                continue;
+            }
+            this.waiter = Thread.currentThread();
+            if (!cond.getAsBoolean()) {
+                LockSupport.park(this);
+            }
+            this.waiter = null;
+            if (Thread.interrupted()) {
+                throw new IOException(new InterruptedException());
+            }
+        }
+        this.stalls.incrementAndGet();
+        this.stallNanos.addAndGet(System.nanoTime() - t0);
+    }
+
+    void wakeup() {
+        final Thread waiter = this.waiter;
+        if (null != waiter) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * The write-behind stage, drains the transformed buffers in order. Runs
+     * either as a thread of its own, or as a short-living drain task on the
+     * executor whenever a buffer got done.
+     */
+    class Writer implements Runnable {
+        final Thread thrd = null != MultiplexBlockDevice.this.executor ? null :
+                            new Thread(this, "MBD.Writer");
+
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        volatile boolean     ended;
+        volatile boolean     discard;
+        volatile IOException err;
+
+        public void run() {
+            for (;;) {
+                if (drainOne()) {
+                    continue;
+                }
+                if (this.ended) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+        }
+
+        void signal() {
+            if (null != this.thrd) {
+                LockSupport.unpark(this.thrd);
+                return;
+            }
+            if (this.draining.compareAndSet(false, true)) {
+                try {
+                    MultiplexBlockDevice.this.executor.execute(this::drainAll);
+                }
+                catch (RejectedExecutionException ree) {
+                    // do it ourselves then
+                    drainAll();
+                }
+            }
+        }
+
+        void drainAll() {
+            // only one drain task might be active, and it needs to look again
+            // after leaving, since a buffer could have been done in between
+            do {
+                while (drainOne());
+                this.draining.set(false);
+            }
+            while (ready() && this.draining.compareAndSet(false, true));
+        }
+
+        boolean ready() {
+            final MultiplexBlockDevice mbd = MultiplexBlockDevice.this;
+            return mbd.drained.get() < mbd.filled.get() &&
+                   STATE_DONE == oldest().state.get();
+        }
+
+        boolean drainOne() {
+            final MultiplexBlockDevice mbd = MultiplexBlockDevice.this;
+            final long drained = mbd.drained.get();
+            final Buffer buf = oldest();
+            if (drained < mbd.filled.get() && STATE_DONE == buf.state.get()) {
+                try {
+                    if (null == this.err && !this.discard) {
+                        if (null != buf.ioerr) {
+                            throw buf.ioerr;
+                        }
+                        buf.flush();
                     }
                 }
+                catch (IOException ioe) {
+                    this.err = ioe;
+                }
+                catch (RuntimeException | Error e) {
+                    // nobody would notice otherwise and the caller hang
+                    this.err = new IOException(e);
+                }
+                finally {
+                    buf.pos = 0;
+                }
+                buf.state.set(STATE_FREE);
+                mbd.drained.incrementAndGet();
+                wakeup();
                 return true;
             }
             return false;
         }
 
-        void flush() throws IOException {
-            for (int i = 0; i < this.pos; i++) {
-                MultiplexBlockDevice.this.bdev.write(
-                        this.nums[i],
-                        this.buf,
-                        i * this.bsz);
+        void check() throws IOException {
+            final IOException err = this.err;
+            if (null != err) {
+                throw err;
+            }
+        }
+
+        void end() {
+            this.ended = true;
+            if (null != this.thrd) {
+                LockSupport.unpark(this.thrd);
             }
-            this.pos = 0;
         }
     }
 
-    ///////////////////////////////////////////////////////////////////////////
+    Buffer head() {
+        return this.bufs[(int)(this.filled.get() % this.bufs.length)];
+    }
 
-    private void incIdx() {
-        this.idx = (this.idx + 1) % this.bufs.length;
+    Buffer oldest() {
+        return this.bufs[(int)(this.drained.get() % this.bufs.length)];
+    }
+
+    /**
+     * Writes out the oldest buffer, once it got transformed.
+     * @param wait True to wait for the transformation to finish.
+     * @param err True if just cleanup should happen.
+     * @return False if the buffer is not transformed yet.
+     * @throws IOException If any error occurred.
+     */
+    boolean drain(boolean wait, boolean err) throws IOException {
+        final Buffer buf = oldest();
+        if (wait) {
+            awaitIdle(buf);
+        }
+        else if (STATE_DONE != buf.state.get()) {
+            return false;
+        }
+        if (err) {
+            buf.pos = 0;
+        }
+        else {
+            if (null != buf.ioerr) {
+                throw buf.ioerr;
+            }
+            buf.flush();
+        }
+        buf.state.set(STATE_FREE);
+        this.drained.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the buffer to fill into, applying back-pressure if needed.
+     * @return The buffer, ready to take more blocks.
+     * @throws IOException If any error occurred.
+     */
+    Buffer acquire() throws IOException {
+        final Buffer result = head();
+        if (0 < result.pos && STATE_FREE == result.state.get()) {
+            return result;  // still filling that one
+        }
+        final long filled = this.filled.get();
+        if (null != this.writer) {
+            await(() -> filled - this.drained.get() < this.maxPending);
+            this.writer.check();
+            return result;
+        }
+        while (this.drained.get() < filled && drain(false, false));
+        while (filled - this.drained.get() >= this.maxPending) {
+            drain(true, false);
+        }
+        return result;
+    }
+
+    void submit(Buffer buf) {
+        // count first, so the writer will find the buffer once it got done
+        final long depth = this.filled.incrementAndGet() - this.drained.get();
+        if (depth > this.maxDepth) {
+            this.maxDepth = (int)depth;
+        }
+        buf.process();
+        if (__TEST_sync_process) {
+            while (STATE_QUEUED == buf.state.get()) {
+                try { Thread.sleep(1); }
+                catch (InterruptedException ignored) { }
+            }
+        }
     }
 
     /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
     public void write(long num, byte[] block, int ofs) throws IOException {
+        writeBlocks(num, 1, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
         if (null == this.bdev) {
             throw new IOException();
         }
 
-        Buffer buf = this.bufs[this.idx];
+        endReadAhead();
 
-        if (buf.add(num, block, ofs)) {
-            incIdx();
+        if (null != this.writer) {
+            this.writer.check();
         }
-    }
 
-    private void closeWrite(boolean err) throws IOException {
-        {
-            Buffer buf = this.bufs[this.idx];
+        while (0 < count) {
+            final Buffer bbuf = acquire();
 
-            if (0 == buf.busy.get() &&
-                     buf.pos > 0    &&
-                     buf.pos < buf.sz) {
-                buf.process();
-                incIdx();
+            final int added = bbuf.add(first, count, buf, ofs);
+            if (bbuf.full()) {
+                submit(bbuf);
             }
-        }
-
-        for (int i = 0; i < this.bufs.length; i++) {
-            Buffer buf = this.bufs[this.idx];
 
-            buf.notbusy(true, err);
+            first += added;
+            count -= added;
+            ofs   += added * bbuf.bsz;
+        }
+    }
 
-            incIdx();
+    private void flushWrite(boolean err) throws IOException {
+        final Buffer buf = head();
+        if (0 < buf.pos && !buf.reading && STATE_FREE == buf.state.get()) {
+            if (err) {
+                buf.pos = 0;
+            }
+            else {
+                submit(buf);
+            }
         }
+        if (null != this.writer) {
+            if (err) {
+                this.writer.discard = true;
+            }
+            await(() -> this.drained.get() == this.filled.get());
+            if (!err) {
+                this.writer.check();
+            }
+            return;
+        }
+        while (this.drained.get() < this.filled.get()) {
+            drain(true, err);
+        }
+    }
 
-        for (Buffer buf : this.bufs) {
-            buf.end();
+    private void closeWrite(boolean err) throws IOException {
+        try {
+            flushWrite(err);
         }
-        for (Buffer buf : this.bufs) {
+        finally {
+            for (Buffer buf : this.bufs) {
+                buf.end();
+            }
+            if (null != this.writer) {
+                this.writer.end();
+            }
             try {
-                buf.join();
+                for (Buffer buf : this.bufs) {
+                    if (null != buf.thrd) {
+                        buf.thrd.join();
+                    }
+                }
+                if (null != this.writer && null != this.writer.thrd) {
+                    this.writer.thrd.join();
+                }
             }
             catch (InterruptedException ire) {
                 throw new IOException(ire);
@@ -286,17 +790,94 @@ public final class MultiplexBlockDevice implements BlockDevice {
     /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
     public void close(boolean err) throws IOException {
         if (null != this.bdev) {
+            endReadAhead();
+
             closeWrite(err);
 
             this.bdev = null;
         }
     }
 
+    private void endReadAhead() throws IOException {
+        if (this.raActive) {
+            this.raActive = false;
+            for (Buffer buf : this.bufs) {
+                awaitIdle(buf);
+                buf.reading = false;
+                buf.pos     = 0;
+                buf.state.set(STATE_FREE);
+            }
+        }
+    }
+
+    private boolean readAhead(long num, byte[] block, int ofs) throws IOException {
+        if (!this.readAhead || num < 0L || num >= this.bdev.size()) {
+            return false;
+        }
+        if (!this.raActive) {
+            // pending writes must have landed before we can read anything
+            flushWrite(false);
+            this.raActive = true;
+            this.raNext = -1L;
+        }
+        for (;;) {
+            final Buffer head = this.bufs[this.raIdx];
+            if (head.fetch(num, block, ofs)) {
+                return true;
+            }
+            if (head.reading && num >= head.first + head.pos && num < this.raNext) {
+                // sequential access, move on to the next window and refill
+                // the one we are done with
+                this.raNext += head.load(this.raNext);
+                this.raIdx = (this.raIdx + 1) % this.bufs.length;
+                continue;
+            }
+            // random access, so start all over
+            this.raIdx  = 0;
+            this.raNext = num;
+            for (Buffer buf : this.bufs) {
+                this.raNext += buf.load(this.raNext);
+            }
+        }
+    }
+
     /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
     public void read(long num, byte[] block, int ofs) throws IOException {
-        // TODO: multiplex that
+        if (readAhead(num, block, ofs)) {
+            return;
+        }
         num = this.bufs[0].fread.map(num);
         this.bdev.read(num, block, ofs);
         this.bufs[0].fread.transform(num, block, ofs);
     }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (0 == count) {
+            return;
+        }
+        if (this.readAhead) {
+            for (int i = 0, bsz = this.bdev.blockSize(); i < count; i++, ofs += bsz) {
+                read(first + i, buf, ofs);
+            }
+            return;
+        }
+        final BlockDevice.Filter fread = this.bufs[0].fread;
+        final int bsz = this.bdev.blockSize();
+        final long[] nums = new long[count];
+        boolean consecutive = true;
+        for (int i = 0; i < count; i++) {
+            nums[i] = fread.map(first + i);
+            consecutive &= nums[i] == nums[0] + i;
+        }
+        if (consecutive) {
+            this.bdev.readBlocks(nums[0], count, buf, ofs);
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                this.bdev.read(nums[i], buf, ofs + i * bsz);
+            }
+        }
+        fread.transformBatch(nums, count, buf, ofs, bsz);
+    }
 }
@@ -0,0 +1,281 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy-on-write block device layer. Reads go through to a base device, while
+ * writes get redirected into a delta store, either in memory or on a side
+ * device. The base device does not get modified until the changes get
+ * committed explicitly.
+ * <p>
+ * The deltas are organized in layers, with a new layer pushed by every
+ * snapshot. Rolling back drops the top layer, thus all of the changes made
+ * since the last snapshot. Reads look into the layers from the top down.
+ */
+public class OverlayBlockDevice implements BlockDevice {
+    final static int CHUNK_BLOCKS = 256;
+
+    BlockDevice base;
+
+    final BlockDevice store;
+    final int bsz;
+
+    final ArrayList<HashMap<Long, Integer>> layers = new ArrayList<>();
+
+    // the in-memory store, if no side device is used
+    final ArrayList<byte[]> chunks = new ArrayList<>();
+
+    int   slots;
+    int[] free = new int[16];
+    int   freeCount;
+
+    /**
+     * Ctor for keeping the changes in memory.
+     * @param base The base device, which does not need to be writable.
+     */
+    public OverlayBlockDevice(BlockDevice base) {
+        this(base, null);
+    }
+
+    /**
+     * Ctor for keeping the changes on a side device.
+     * @param base The base device, which does not need to be writable.
+     * @param store The device to store the changed blocks in. Its size limits
+     * the number of blocks which can be held at any time. Null to keep the
+     * changes in memory.
+     */
+    public OverlayBlockDevice(BlockDevice base, BlockDevice store) {
+        if (base.writeOnly()) {
+            throw new IllegalArgumentException("base device is writeonly");
+        }
+        if (null != store) {
+            if (store.blockSize() != base.blockSize()) {
+                throw new IllegalArgumentException(String.format(
+                        "block size mismatch (%d<>%d)",
+                        store.blockSize(), base.blockSize()));
+            }
+            if (store.readOnly() || store.writeOnly() || store.serialWrite()) {
+                throw new IllegalArgumentException("store must be random access read/write");
+            }
+        }
+        this.base  = base;
+        this.store = store;
+        this.bsz   = base.blockSize();
+        this.layers.add(new HashMap<>());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.base.size();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        return false;
+    }
+
+    /** @return Number of snapshots taken and not rolled back yet. */
+    public int snapshots() {
+        return this.layers.size() - 1;
+    }
+
+    /** @return Number of changed blocks held, over all of the layers. */
+    public int deltaBlocks() {
+        return this.slots - this.freeCount;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Takes a snapshot, which is cheap since it just starts a new layer.
+     * @return The number of snapshots.
+     */
+    public int snapshot() {
+        this.layers.add(new HashMap<>());
+        return snapshots();
+    }
+
+    /**
+     * Drops all of the changes made since the last snapshot.
+     * @throws IOException If there is no snapshot to return to.
+     */
+    public void rollback() throws IOException {
+        if (0 == snapshots()) {
+            throw new IOException("no snapshot to roll back to");
+        }
+        release(this.layers.remove(this.layers.size() - 1));
+    }
+
+    /**
+     * Drops all of the changes, including the ones of all snapshots.
+     */
+    public void discard() {
+        for (HashMap<Long, Integer> layer : this.layers) {
+            release(layer);
+        }
+        this.layers.clear();
+        this.layers.add(new HashMap<>());
+        this.chunks.clear();
+        this.slots = this.freeCount = 0;
+    }
+
+    /**
+     * Writes all of the changes to the base device, in block order. The overlay
+     * is empty afterwards, with no snapshots left.
+     * @throws IOException If any error occurred.
+     */
+    public void commit() throws IOException {
+        if (this.base.readOnly()) {
+            throw new IOException("base device is readonly");
+        }
+        final HashMap<Long, Integer> merged = new HashMap<>();
+        for (HashMap<Long, Integer> layer : this.layers) {
+            merged.putAll(layer);
+        }
+        final long[] nums = new long[merged.size()];
+        int c = 0;
+        for (Long num : merged.keySet()) {
+            nums[c++] = num;
+        }
+        Arrays.sort(nums);
+        final byte[] block = new byte[this.bsz];
+        for (long num : nums) {
+            loadSlot(merged.get(num), block, 0);
+            this.base.write(num, block, 0);
+        }
+        discard();
+    }
+
+    void release(Map<Long, Integer> layer) {
+        for (int slot : layer.values()) {
+            freeSlot(slot);
+        }
+    }
+
+    void freeSlot(int slot) {
+        if (this.freeCount == this.free.length) {
+            this.free = Arrays.copyOf(this.free, this.freeCount << 1);
+        }
+        this.free[this.freeCount++] = slot;
+    }
+
+    int allocSlot() throws IOException {
+        if (0 < this.freeCount) {
+            return this.free[--this.freeCount];
+        }
+        if (null != this.store && this.slots >= this.store.size()) {
+            throw new IOException(String.format(
+                    "overlay store full (%d)", this.slots));
+        }
+        return this.slots++;
+    }
+
+    void loadSlot(int slot, byte[] block, int ofs) throws IOException {
+        if (null != this.store) {
+            this.store.read(slot, block, ofs);
+            return;
+        }
+        System.arraycopy(this.chunks.get(slot / CHUNK_BLOCKS),
+                         (slot % CHUNK_BLOCKS) * this.bsz,
+                         block,
+                         ofs,
+                         this.bsz);
+    }
+
+    void storeSlot(int slot, byte[] block, int ofs) throws IOException {
+        if (null != this.store) {
+            this.store.write(slot, block, ofs);
+            return;
+        }
+        final int cidx = slot / CHUNK_BLOCKS;
+        while (this.chunks.size() <= cidx) {
+            this.chunks.add(new byte[CHUNK_BLOCKS * this.bsz]);
+        }
+        System.arraycopy(block,
+                         ofs,
+                         this.chunks.get(cidx),
+                         (slot % CHUNK_BLOCKS) * this.bsz,
+                         this.bsz);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        for (int i = this.layers.size() - 1; i >= 0; i--) {
+            final Integer slot = this.layers.get(i).get(num);
+            if (null != slot) {
+                loadSlot(slot, block, ofs);
+                return;
+            }
+        }
+        this.base.read(num, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        if (num >= this.base.size() ||
+            num < 0L) {
+            throw new IOException(String.format(
+                    "illegal number (%d, size=%d)",
+                    num, this.base.size()));
+        }
+        if (null == block) {
+            return;
+        }
+        final HashMap<Long, Integer> top = this.layers.get(this.layers.size() - 1);
+        final Integer slot = top.get(num);
+        if (null != slot) {
+            storeSlot(slot, block, ofs);
+            return;
+        }
+        final int nslot = allocSlot();
+        try {
+            storeSlot(nslot, block, ofs);
+        }
+        catch (IOException ioe) {
+            freeSlot(nslot);
+            throw ioe;
+        }
+        top.put(num, nslot);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (null == this.base) {
+            return;
+        }
+        discard();
+        final BlockDevice base = this.base;
+        this.base = null;
+        try {
+            base.close(err);
+        }
+        finally {
+            if (null != this.store) {
+                this.store.close(err);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Exposes a block device with a different block size, one being a multiple of
+ * the other. Larger logical blocks simply map to runs of physical ones. With
+ * smaller logical blocks the physical block currently worked on gets buffered,
+ * so sequential small writes get coalesced into one physical write, and
+ * partially written physical blocks get completed by read-modify-write (or by
+ * zeros, if the device cannot be read from). Ranged I/O covering whole
+ * physical blocks is passed through directly.
+ */
+public class ReblockingBlockDevice implements BlockDevice {
+    BlockDevice bdev;
+
+    final int  bsz;
+    final int  pbsz;
+    /** Logical blocks per physical block, 1 if the logical ones are larger. */
+    final int  ratio;
+    /** Physical blocks per logical block, 1 if the logical ones are smaller. */
+    final int  scale;
+    final long size;
+
+    // the buffered physical block
+    final byte[]    cur;
+    final boolean[] written;
+    long    curNum = -1L;
+    int     writtenCount;
+    boolean loaded;
+
+    /**
+     * Default ctor.
+     * @param bdev The device to adapt.
+     * @param blockSize The block size to expose, either a multiple or a whole
+     * fraction of the device's block size.
+     */
+    public ReblockingBlockDevice(BlockDevice bdev, int blockSize) {
+        final int pbsz = bdev.blockSize();
+        if (0 >= blockSize ||
+            (0 != pbsz % blockSize && 0 != blockSize % pbsz)) {
+            throw new IllegalArgumentException(String.format(
+                    "incompatible block sizes (%d<>%d)", blockSize, pbsz));
+        }
+        this.bdev  = bdev;
+        this.bsz   = blockSize;
+        this.pbsz  = pbsz;
+        this.ratio = Math.max(1, pbsz / blockSize);
+        this.scale = Math.max(1, blockSize / pbsz);
+        this.size  = bdev.size() / this.scale * this.ratio;
+
+        this.cur     = 1 < this.ratio ? new byte[pbsz] : null;
+        this.written = 1 < this.ratio ? new boolean[this.ratio] : null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        return this.bdev.readOnly();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return this.bdev.serialWrite();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.size;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        return this.bdev.writeOnly();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void checkRange(long first, int count) throws IOException {
+        if (first < 0L ||
+            first > this.size - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.size));
+        }
+    }
+
+    /**
+     * Writes out the buffered physical block, if it got modified.
+     * @throws IOException If any error occurred.
+     */
+    public void flush() throws IOException {
+        if (0 == this.writtenCount) {
+            return;
+        }
+        if (this.writtenCount < this.ratio && !this.loaded) {
+            // fill the gaps with what's on the device, or with zeros if
+            // there's no way to find out
+            final byte[] tmp = new byte[this.pbsz];
+            if (!this.bdev.writeOnly()) {
+                this.bdev.read(this.curNum, tmp, 0);
+            }
+            for (int i = 0; i < this.ratio; i++) {
+                if (!this.written[i]) {
+                    System.arraycopy(tmp, i * this.bsz, this.cur, i * this.bsz, this.bsz);
+                }
+            }
+        }
+        this.bdev.write(this.curNum, this.cur, 0);
+        Arrays.fill(this.written, false);
+        this.writtenCount = 0;
+        this.loaded = true;
+    }
+
+    /** Switches the buffer over to another physical block. */
+    void select(long pnum, boolean load) throws IOException {
+        if (pnum != this.curNum) {
+            flush();
+            this.curNum = pnum;
+            this.loaded = false;
+        }
+        if (load && !this.loaded) {
+            final byte[] tmp = 0 < this.writtenCount ? new byte[this.pbsz] : this.cur;
+            this.bdev.read(pnum, tmp, 0);
+            if (tmp != this.cur) {
+                for (int i = 0; i < this.ratio; i++) {
+                    if (!this.written[i]) {
+                        System.arraycopy(tmp, i * this.bsz, this.cur, i * this.bsz, this.bsz);
+                    }
+                }
+            }
+            this.loaded = true;
+        }
+    }
+
+    /** Drops the buffered block if it is within the given physical range. */
+    void invalidate(long pfirst, long pcount, boolean write) throws IOException {
+        if (this.curNum >= pfirst && this.curNum < pfirst + pcount) {
+            if (write) {
+                // gets overwritten anyway
+                Arrays.fill(this.written, false);
+                this.writtenCount = 0;
+            }
+            else {
+                flush();
+            }
+            this.curNum = -1L;
+            this.loaded = false;
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        readBlocks(num, 1, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        writeBlocks(num, 1, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (0 >= count) {
+            return;
+        }
+        checkRange(first, count);
+        if (1 == this.ratio) {
+            this.bdev.readBlocks(first * this.scale, count * this.scale, buf, ofs);
+            return;
+        }
+        while (0 < count) {
+            final long pnum = first / this.ratio;
+            final int  sub  = (int)(first % this.ratio);
+            if (0 == sub && count >= this.ratio) {
+                final int pcount = count / this.ratio;
+                invalidate(pnum, pcount, false);
+                this.bdev.readBlocks(pnum, pcount, buf, ofs);
+                first += pcount * this.ratio;
+                count -= pcount * this.ratio;
+                ofs   += pcount * this.pbsz;
+                continue;
+            }
+            final int part = Math.min(count, this.ratio - sub);
+            select(pnum, true);
+            System.arraycopy(this.cur, sub * this.bsz, buf, ofs, part * this.bsz);
+            first += part;
+            count -= part;
+            ofs   += part * this.bsz;
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (this.bdev.readOnly()) {
+            throw new IOException("block device is readonly");
+        }
+        if (0 >= count) {
+            return;
+        }
+        checkRange(first, count);
+        if (1 == this.ratio) {
+            this.bdev.writeBlocks(first * this.scale, count * this.scale, buf, ofs);
+            return;
+        }
+        if (null == buf) {
+            // just checking the range
+            return;
+        }
+        while (0 < count) {
+            final long pnum = first / this.ratio;
+            final int  sub  = (int)(first % this.ratio);
+            if (0 == sub && count >= this.ratio) {
+                final int pcount = count / this.ratio;
+                if (pnum != this.curNum) {
+                    // keep the order of the physical writes
+                    flush();
+                }
+                invalidate(pnum, pcount, true);
+                this.bdev.writeBlocks(pnum, pcount, buf, ofs);
+                first += pcount * this.ratio;
+                count -= pcount * this.ratio;
+                ofs   += pcount * this.pbsz;
+                continue;
+            }
+            final int part = Math.min(count, this.ratio - sub);
+            select(pnum, false);
+            System.arraycopy(buf, ofs, this.cur, sub * this.bsz, part * this.bsz);
+            for (int i = sub; i < sub + part; i++) {
+                if (!this.written[i]) {
+                    this.written[i] = true;
+                    this.writtenCount++;
+                }
+            }
+            if (this.writtenCount == this.ratio) {
+                // complete, no reason to hold it back any longer
+                flush();
+            }
+            first += part;
+            count -= part;
+            ofs   += part * this.bsz;
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (null == this.bdev) {
+            return;
+        }
+        try {
+            if (!err && 1 < this.ratio) {
+                flush();
+            }
+        }
+        catch (IOException ioe) {
+            err = true;
+            throw ioe;
+        }
+        finally {
+            final BlockDevice bdev = this.bdev;
+            this.bdev = null;
+            bdev.close(err);
+        }
+    }
+}
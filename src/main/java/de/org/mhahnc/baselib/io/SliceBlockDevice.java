@@ -0,0 +1,106 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+
+/**
+ * View of a range of blocks of another device, e.g. a partition. Block numbers
+ * just get translated, so there is no copying involved. Closing the slice does
+ * not close the underlying device, since there might be other slices of it.
+ */
+public class SliceBlockDevice implements BlockDevice {
+    final BlockDevice base;
+    final long        first;
+    final long        count;
+
+    /**
+     * Default ctor.
+     * @param base The underlying device.
+     * @param first Number of the first block of the slice.
+     * @param count Number of blocks in the slice.
+     */
+    public SliceBlockDevice(BlockDevice base, long first, long count) {
+        if (first < 0L || count < 0L || first > base.size() - count) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal slice (%d+%d, size=%d)",
+                    first, count, base.size()));
+        }
+        this.base  = base;
+        this.first = first;
+        this.count = count;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.base.blockSize();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        return this.base.readOnly();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return this.base.serialWrite();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.count;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        return this.base.writeOnly();
+    }
+
+    /** @return Number of the first block in the underlying device. */
+    public long first() {
+        return this.first;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void checkRange(long first, int count) throws IOException {
+        if (first < 0L ||
+            first > this.count - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.count));
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        this.base.read(this.first + num, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        this.base.write(this.first + num, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (0 < count) {
+            checkRange(first, count);
+            this.base.readBlocks(this.first + first, count, buf, ofs);
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (0 < count) {
+            checkRange(first, count);
+            this.base.writeBlocks(this.first + first, count, buf, ofs);
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+    }
+}
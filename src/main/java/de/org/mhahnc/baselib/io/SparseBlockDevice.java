@@ -0,0 +1,215 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.org.mhahnc.baselib.util.BinUtils;
+
+/**
+ * Block device layer which does not store blocks consisting of zeros only.
+ * Which blocks got written with actual data is tracked in a bitmap, reading
+ * any other block returns zeros without accessing the underlying device.
+ * <p>
+ * The underlying device is expected to read as zeros initially, e.g. a file
+ * which just got extended via setLength(), so skipped writes leave holes in
+ * a sparse file. Once a block got allocated, writing zeros to it does hit the
+ * device, since there is no portable way to punch a hole into a file.
+ */
+public class SparseBlockDevice implements BlockDevice {
+    final static int PAGE_SHIFT = 16;
+    final static int PAGE_BITS  = 1 << PAGE_SHIFT;
+
+    BlockDevice bdev;
+
+    final int      bsz;
+    final long[][] pages;
+
+    long allocated;
+    long skipped;
+
+    /**
+     * Default ctor.
+     * @param bdev The underlying device, which must not be serial and must
+     * read as zeros in all of its blocks initially.
+     */
+    public SparseBlockDevice(BlockDevice bdev) {
+        if (bdev.serialWrite()) {
+            throw new IllegalArgumentException("cannot skip blocks on a serial device");
+        }
+        final long pcount = (bdev.size() + PAGE_BITS - 1) >>> PAGE_SHIFT;
+        if (pcount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "device too large (%d)", bdev.size()));
+        }
+        this.bdev  = bdev;
+        this.bsz   = bdev.blockSize();
+        this.pages = new long[(int)pcount][];
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        return this.bdev.readOnly();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.bdev.size();
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        return this.bdev.writeOnly();
+    }
+
+    /** @return Number of blocks which got actually stored. */
+    public long allocated() {
+        return this.allocated;
+    }
+
+    /** @return Number of zero block writes which got skipped. */
+    public long skipped() {
+        return this.skipped;
+    }
+
+    /**
+     * @param num The block number.
+     * @return True if the block got written with data.
+     * @throws IllegalArgumentException If the block number is out of range.
+     */
+    public boolean isAllocated(long num) {
+        if (num < 0L || num >= this.bdev.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal block number (%d, size=%d)", num, this.bdev.size()));
+        }
+        final long[] page = this.pages[(int)(num >>> PAGE_SHIFT)];
+        return null != page &&
+               0L != (page[(int)(num & (PAGE_BITS - 1)) >>> 6] & (1L << num));
+    }
+
+    void allocate(long num) {
+        final int pidx = (int)(num >>> PAGE_SHIFT);
+        long[] page = this.pages[pidx];
+        if (null == page) {
+            page = this.pages[pidx] = new long[PAGE_BITS >>> 6];
+        }
+        final int idx = (int)(num & (PAGE_BITS - 1)) >>> 6;
+        final long bit = 1L << num;
+        if (0L == (page[idx] & bit)) {
+            page[idx] |= bit;
+            this.allocated++;
+        }
+    }
+
+    boolean isZero(byte[] buf, int ofs) {
+        return BinUtils.checkFillValue(buf, ofs, this.bsz, (byte)0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        writeBlocks(num, 1, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (this.bdev.readOnly()) {
+            throw new IOException("block device is readonly");
+        }
+        if (0 >= count) {
+            return;
+        }
+        if (first < 0L ||
+            first > this.bdev.size() - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.bdev.size()));
+        }
+        if (null == buf) {
+            this.bdev.writeBlocks(first, count, buf, ofs);
+            return;
+        }
+        // split into runs of blocks to store and runs of blocks to skip
+        final int bsz = this.bsz;
+        int run = 0;
+        for (int i = 0; i < count; i++) {
+            final long num = first + i;
+            if (isZero(buf, ofs + i * bsz) && !isAllocated(num)) {
+                writeRun(num - run, run, buf, ofs + (i - run) * bsz);
+                run = 0;
+                this.skipped++;
+                continue;
+            }
+            run++;
+        }
+        writeRun(first + count - run, run, buf, ofs + (count - run) * bsz);
+    }
+
+    void writeRun(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (0 < count) {
+            this.bdev.writeBlocks(first, count, buf, ofs);
+            for (int i = 0; i < count; i++) {
+                allocate(first + i);
+            }
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        readBlocks(num, 1, block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        if (this.bdev.writeOnly()) {
+            throw new IOException("block device is writeonly");
+        }
+        if (0 >= count) {
+            return;
+        }
+        if (first < 0L ||
+            first > this.bdev.size() - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.bdev.size()));
+        }
+        final int bsz = this.bsz;
+        int run = 0;
+        for (int i = 0; i < count; i++) {
+            final long num = first + i;
+            if (isAllocated(num)) {
+                run++;
+                continue;
+            }
+            if (0 < run) {
+                this.bdev.readBlocks(num - run, run, buf, ofs + (i - run) * bsz);
+                run = 0;
+            }
+            Arrays.fill(buf, ofs + i * bsz, ofs + (i + 1) * bsz, (byte)0);
+        }
+        if (0 < run) {
+            this.bdev.readBlocks(first + count - run, run, buf, ofs + (count - run) * bsz);
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (null != this.bdev) {
+            final BlockDevice bdev = this.bdev;
+            this.bdev = null;
+            bdev.close(err);
+        }
+    }
+}
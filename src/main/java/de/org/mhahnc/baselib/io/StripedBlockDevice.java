@@ -0,0 +1,254 @@
+package de.org.mhahnc.baselib.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Block device which spreads its blocks over multiple devices, in stripes of a
+ * fixed number of blocks (RAID-0 style). Ranged reads and writes get split up
+ * per member device, which then get accessed in parallel if an executor is
+ * given. Each member is only accessed by one thread at a time.
+ */
+public class StripedBlockDevice implements BlockDevice {
+    final BlockDevice[] devs;
+    final int           stripeSize;
+    final Executor      executor;
+    final int           bsz;
+    final long          size;
+
+    boolean closed;
+
+    /**
+     * Default ctor.
+     * @param devs The member devices, all with the same block size.
+     * @param stripeSize Number of blocks per stripe.
+     * @param executor Executor to run the I/O on the members in parallel,
+     * null to do everything on the caller's thread.
+     */
+    public StripedBlockDevice(BlockDevice[] devs, int stripeSize, Executor executor) {
+        if (0 == devs.length) {
+            throw new IllegalArgumentException("no devices");
+        }
+        if (0 >= stripeSize) {
+            throw new IllegalArgumentException(String.format(
+                    "illegal stripe size (%d)", stripeSize));
+        }
+        long minSize = Long.MAX_VALUE;
+        for (BlockDevice dev : devs) {
+            if (dev.blockSize() != devs[0].blockSize()) {
+                throw new IllegalArgumentException(String.format(
+                        "block size mismatch (%d<>%d)",
+                        dev.blockSize(), devs[0].blockSize()));
+            }
+            if (dev.serialWrite()) {
+                throw new IllegalArgumentException("cannot stripe over serial devices");
+            }
+            minSize = Math.min(minSize, dev.size());
+        }
+        this.devs       = devs.clone();
+        this.stripeSize = stripeSize;
+        this.executor   = executor;
+        this.bsz        = devs[0].blockSize();
+        // the rest of the larger members as well as a partial stripe at the
+        // end of each one can't be used
+        this.size = minSize / stripeSize * stripeSize * devs.length;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#blockSize() */
+    public int blockSize() {
+        return this.bsz;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readOnly() */
+    public boolean readOnly() {
+        for (BlockDevice dev : this.devs) {
+            if (dev.readOnly()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#serialWrite() */
+    public boolean serialWrite() {
+        return false;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#size() */
+    public long size() {
+        return this.size;
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeOnly() */
+    public boolean writeOnly() {
+        for (BlockDevice dev : this.devs) {
+            if (dev.writeOnly()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    int member(long num) {
+        return (int)((num / this.stripeSize) % this.devs.length);
+    }
+
+    long memberNum(long num) {
+        return num / this.stripeSize / this.devs.length * this.stripeSize +
+               num % this.stripeSize;
+    }
+
+    void checkRange(long first, int count) throws IOException {
+        if (first < 0L ||
+            first > this.size - count) {
+            throw new IOException(String.format(
+                    "illegal range (%d+%d, size=%d)",
+                    first, count, this.size));
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#read(long, byte[], int) */
+    public void read(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        this.devs[member(num)].read(memberNum(num), block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#write(long, byte[], int) */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        checkRange(num, 1);
+        this.devs[member(num)].write(memberNum(num), block, ofs);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#readBlocks(long, int, byte[], int) */
+    public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        transfer(first, count, buf, ofs, false);
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#writeBlocks(long, int, byte[], int) */
+    public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+        transfer(first, count, buf, ofs, true);
+    }
+
+    /** The part of a range, which lies within one stripe. */
+    static class Segment {
+        long num;
+        int  count;
+        int  ofs;
+    }
+
+    void transfer(long first, int count, byte[] buf, int ofs, boolean write) throws IOException {
+        if (0 >= count) {
+            return;
+        }
+        checkRange(first, count);
+
+        // collect the stripe segments per member, in the order they appear
+        final int n = this.devs.length;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayList<Segment>[] segs = new ArrayList[n];
+        int members = 0;
+        for (long num = first, end = first + count; num < end;) {
+            final Segment seg = new Segment();
+            seg.num   = memberNum(num);
+            seg.count = (int)Math.min(end - num, this.stripeSize - num % this.stripeSize);
+            seg.ofs   = ofs + (int)(num - first) * this.bsz;
+            final int m = member(num);
+            if (null == segs[m]) {
+                segs[m] = new ArrayList<>();
+                members++;
+            }
+            segs[m].add(seg);
+            num += seg.count;
+        }
+
+        if (null == this.executor || 1 == members) {
+            for (int m = 0; m < n; m++) {
+                if (null != segs[m]) {
+                    transfer(this.devs[m], segs[m], buf, write);
+                }
+            }
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(members);
+        final IOException[] errs = new IOException[n];
+        for (int m = 0; m < n; m++) {
+            if (null == segs[m]) {
+                continue;
+            }
+            final int mi = m;
+            final Runnable task = () -> {
+                try {
+                    transfer(this.devs[mi], segs[mi], buf, write);
+                }
+                catch (IOException ioe) {
+                    errs[mi] = ioe;
+                }
+                catch (RuntimeException re) {
+                    errs[mi] = new IOException(re);
+                }
+                finally {
+                    done.countDown();
+                }
+            };
+            try {
+                this.executor.execute(task);
+            }
+            catch (RejectedExecutionException ree) {
+                task.run();
+            }
+        }
+        try {
+            done.await();
+        }
+        catch (InterruptedException ire) {
+            throw new IOException(ire);
+        }
+        for (IOException err : errs) {
+            if (null != err) {
+                throw err;
+            }
+        }
+    }
+
+    void transfer(BlockDevice dev, ArrayList<Segment> segs,
+                  byte[] buf, boolean write) throws IOException {
+        for (Segment seg : segs) {
+            if (write) {
+                dev.writeBlocks(seg.num, seg.count, buf, seg.ofs);
+            }
+            else {
+                dev.readBlocks(seg.num, seg.count, buf, seg.ofs);
+            }
+        }
+    }
+
+    /** @see de.org.mhahnc.baselib.io.BlockDevice#close(boolean) close() */
+    public void close(boolean err) throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        IOException ioe = null;
+        for (BlockDevice dev : this.devs) {
+            try {
+                dev.close(err);
+            }
+            catch (IOException ioe2) {
+                if (null == ioe) {
+                    ioe = ioe2;
+                }
+            }
+        }
+        if (null != ioe) {
+            throw ioe;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BinUtils  {
 
@@ -460,12 +461,16 @@ public class BinUtils  {
     }
 
     public static boolean checkFillValue(byte[] buf, int ofs, int len, byte val) {
-        for (int end = ofs + len; ofs < end; ofs++) {
-            if (buf[ofs] != val) {
-                return false;
-            }
+        if (0 >= len) {
+            return true;
         }
-        return true;
+        if (buf[ofs] != val) {
+            return false;
+        }
+        // all of the bytes are equal to the first one if the data matches
+        // itself shifted by one, mismatch() gets that done in a vectorized way
+        return -1 == Arrays.mismatch(buf, ofs, ofs + len - 1,
+                                     buf, ofs + 1, ofs + len);
     }
 
     public static long u32ToLng(int value) {
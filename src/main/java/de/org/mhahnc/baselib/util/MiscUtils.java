@@ -1,6 +1,5 @@
 package de.org.mhahnc.baselib.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -15,6 +14,7 @@ import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -181,29 +181,75 @@ public class MiscUtils {
     ///////////////////////////////////////////////////////////////////////////
 
     public static byte[] readInputStream(InputStream ins) throws IOException {
-        final byte[] buf = new byte[4096];
+        return readInputStream(ins, -1L);
+    }
+
+    /** Largest array we dare to allocate. */
+    final static int READ_MAXLEN = Integer.MAX_VALUE - 8;
+    /** Most we allocate up front, before any data confirmed the size hint. */
+    final static int READ_MAXINITIAL = 1 << 24;
+
+    /**
+     * Reads a stream completely and closes it. If the expected length is known
+     * and at most 16MB the result gets allocated just once, without any
+     * intermediate copies. Beyond that the buffer grows by doubling.
+     * @param ins The stream to read from.
+     * @param sizeHint The expected number of bytes, or -1 if unknown (which
+     * for file streams then gets determined automatically). A wrong hint does
+     * not change the result, it just costs extra copies.
+     * @return All of the bytes read.
+     * @throws IOException If any error occurred.
+     * @throws OutOfMemoryError If the stream is too large for an array.
+     */
+    public static byte[] readInputStream(InputStream ins, long sizeHint) throws IOException {
         try {
-            ByteArrayOutputStream baos = new
-            ByteArrayOutputStream(buf.length);
-            for(;;) {
-                int read = ins.read(buf);
-                if (-1 == read) {
-                    break;
+            if (0L > sizeHint && ins instanceof FileInputStream) {
+                final FileChannel fc = ((FileInputStream)ins).getChannel();
+                sizeHint = Math.max(0L, fc.size() - fc.position());
+            }
+            byte[] result = new byte[(int)(0L > sizeHint ? 4096 :
+                                     Math.min(READ_MAXINITIAL, sizeHint))];
+            int len = readFully(ins, result, 0, result.length);
+            if (len < result.length) {
+                return Arrays.copyOf(result, len);
+            }
+            for (;;) {
+                final int b = ins.read();
+                if (-1 == b) {
+                    return len == result.length ? result : Arrays.copyOf(result, len);
+                }
+                if (len == result.length) {
+                    if (READ_MAXLEN == len) {
+                        throw new OutOfMemoryError("stream too large");
+                    }
+                    final long grow = Math.max(4096L, (long)len << 1);
+                    result = Arrays.copyOf(result, (int)Math.min(READ_MAXLEN, grow));
                 }
-                baos.write(buf, 0, read);
+                result[len++] = (byte)b;
+                len += readFully(ins, result, len, result.length - len);
             }
-            baos.close();
-            return baos.toByteArray();
         }
         finally {
             ins.close();
         }
     }
 
+    static int readFully(InputStream ins, byte[] buf, int ofs, int len) throws IOException {
+        int ofs0 = ofs;
+        for (int end = ofs + len; ofs < end;) {
+            int read = ins.read(buf, ofs, end - ofs);
+            if (-1 == read) {
+                break;
+            }
+            ofs += read;
+        }
+        return ofs - ofs0;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     public static byte[] readFile(File fl) throws IOException {
-        return readInputStream(new FileInputStream(fl));
+        return readInputStream(new FileInputStream(fl), fl.length());
     }
 
     ///////////////////////////////////////////////////////////////////////////
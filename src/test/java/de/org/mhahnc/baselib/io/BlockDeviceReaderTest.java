@@ -0,0 +1,471 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+import de.org.mhahnc.baselib.test.util.TestUtils;
+import de.org.mhahnc.baselib.util.MiscUtils;
+
+public class BlockDeviceReaderTest {
+    final static long TSTAMP = 1234567890000L;
+
+    /** Extracts a fixed tree: dirs with files, each file filled with its index. */
+    static class TreeReader extends BlockDeviceReader {
+        final int dirs;
+        final int files;
+        int failAt = -1;
+        /** Number of times setting a timestamp fails, per file name. */
+        final Map<String, Integer> stampFails = new HashMap<>();
+
+        TreeReader(Properties props, int dirs, int files) {
+            this(null, props, dirs, files);
+        }
+
+        TreeReader(BlockDevice bdev, Properties props, int dirs, int files) {
+            super(bdev, props);
+            this.dirs  = dirs;
+            this.files = files;
+        }
+
+        boolean applyTimestamp(File obj, long tstamp) {
+            synchronized(this.stampFails) {
+                final Integer fails = this.stampFails.get(obj.getName());
+                if (null != fails && 0 != fails) {
+                    this.stampFails.put(obj.getName(), fails - 1);
+                    return false;
+                }
+            }
+            return super.applyTimestamp(obj, tstamp);
+        }
+
+        public void extract(File toDir, final Progress progress) throws IOException {
+            new LocalDir() {
+                public void writeEntries() throws IOException {
+                    for (int d = 0; d < TreeReader.this.dirs; d++) {
+                        final int fd = d;
+                        new LocalDir() {
+                            public void writeEntries() throws IOException {
+                                for (int f = 0; f < TreeReader.this.files; f++) {
+                                    final int idx = fd * TreeReader.this.files + f;
+                                    new LocalFile() {
+                                        protected void writeData(OutputStream os, long size) throws IOException {
+                                            if (idx == TreeReader.this.failAt) {
+                                                throw new IOException("failed");
+                                            }
+                                            final BlockDevice bdev = TreeReader.this.bdev;
+                                            if (null != bdev) {
+                                                bdev.read(idx % bdev.size(), new byte[bdev.blockSize()], 0);
+                                            }
+                                            for (long i = 0; i < size; i++) {
+                                                os.write(idx);
+                                            }
+                                            os.close();
+                                            if (null != progress()) {
+                                                progress().onData(size);
+                                            }
+                                        }
+                                    }.write(new File(new File(toDir, "d" + fd), "f" + f),
+                                            100 + idx, TSTAMP + idx * 1000L, progress);
+                                }
+                            }
+                        }.write(new File(toDir, "d" + d), TSTAMP - d * 1000L);
+                    }
+                }
+            }.write(toDir, null);
+        }
+    }
+
+    static class Recorder implements BlockDeviceReader.Progress2 {
+        final List<Long> done = new ArrayList<>();
+        final List<Long> data = new ArrayList<>();
+        int abortAt = -1;
+        public Result onMounting (int numOfObjects                 ) { return Result.OK; }
+        public Result onMount    (int numOfFiles, int numOfDirs    ) { return Result.OK; }
+        public Result onDirectory(File dir , long size, Long tstamp) { return Result.OK; }
+        public Result onFile     (File file, long size, Long tstamp) { return Result.OK; }
+        public Result onData     (long written) {
+            assertTrue(!Thread.currentThread().getName().startsWith("BDR."));
+            // every file reports its data once, right before it is done
+            assertTrue(this.data.size() == this.done.size());
+            this.data.add(written);
+            return Result.OK;
+        }
+        public Result onDone     (long total) {
+            assertTrue(!Thread.currentThread().getName().startsWith("BDR."));
+            this.done.add(total);
+            return this.done.size() == this.abortAt ? Result.ABORT : Result.OK;
+        }
+    }
+
+    static Properties props(int threads) {
+        Properties result = new Properties();
+        BlockDeviceReader.Props.THREADS.set(result, threads);
+        return result;
+    }
+
+    /** Device which fails if it ever gets used by more than one thread. */
+    static class ExclusiveDevice extends BlockDeviceImpl.MemoryBlockDevice {
+        final AtomicInteger users = new AtomicInteger();
+        volatile boolean shared;
+
+        ExclusiveDevice() throws IOException {
+            super(512, 16, false, false);
+        }
+
+        public void internalRead(long num, byte[] block, int ofs) throws IOException {
+            if (1 < this.users.incrementAndGet()) {
+                this.shared = true;
+            }
+            try {
+                Thread.sleep(1);
+                super.internalRead(num, block, ofs);
+            }
+            catch (InterruptedException ire) {
+                throw new IOException(ire);
+            }
+            finally {
+                this.users.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testSerializedReads() throws IOException {
+        File dir = TestUtils.createTempDir("bdrtest");
+        try {
+            ExclusiveDevice edev = new ExclusiveDevice();
+            TreeReader rdr = new TreeReader(edev, props(8), 4, 25);
+            Recorder rec = new Recorder();
+            rdr.extract(dir, rec);
+            assertTrue(100 == rec.done.size());
+            assertFalse(edev.shared);
+            assertTrue(edev == rdr.bdev);
+        }
+        finally {
+            assertTrue(TestUtils.removeDir(dir, false));
+        }
+    }
+
+    @Test
+    public void testExtract() throws IOException {
+        for (int threads : new int[] { 1, 2, 8 }) {
+            File dir = TestUtils.createTempDir("bdrtest");
+            try {
+                TreeReader rdr = new TreeReader(props(threads), 5, 20);
+                Recorder rec = new Recorder();
+                rdr.extract(dir, rec);
+
+                // progress and done notifications arrive in the order of the files
+                assertTrue(100 == rec.done.size());
+                assertTrue(rec.data.equals(rec.done));
+                for (int idx = 0; idx < 100; idx++) {
+                    assertTrue(100 + idx == rec.done.get(idx));
+                }
+                for (int d = 0; d < 5; d++) {
+                    File sub = new File(dir, "d" + d);
+                    assertTrue(TSTAMP - d * 1000L == sub.lastModified());
+                    for (int f = 0; f < 20; f++) {
+                        final int idx = d * 20 + f;
+                        File fl = new File(sub, "f" + f);
+                        assertTrue(TSTAMP + idx * 1000L == fl.lastModified());
+                        byte[] data = MiscUtils.readFile(fl);
+                        assertTrue(100 + idx == data.length);
+                        for (byte b : data) {
+                            assertTrue((byte)idx == b);
+                        }
+                    }
+                }
+            }
+            finally {
+                assertTrue(TestUtils.removeDir(dir, false));
+            }
+        }
+    }
+
+    @Test
+    public void testAbortAndError() throws IOException {
+        for (int threads : new int[] { 1, 4 }) {
+            File dir = TestUtils.createTempDir("bdrtest");
+            try {
+                TreeReader rdr = new TreeReader(props(threads), 3, 10);
+                Recorder rec = new Recorder();
+                rec.abortAt = 7;
+                try {
+                    rdr.extract(dir, rec);
+                    fail();
+                }
+                catch (BlockDeviceReader.Exception be) {
+                    assertTrue(BlockDeviceReader.Exception.Code.ABORTED == be.code);
+                }
+                assertTrue(7 == rec.done.size());
+                assertTrue(null == rdr.extraction);
+
+                rdr = new TreeReader(props(threads), 3, 10);
+                rdr.failAt = 12;
+                rec = new Recorder();
+                try {
+                    rdr.extract(dir, rec);
+                    fail();
+                }
+                catch (BlockDeviceReader.Exception be) {
+                    assertTrue(BlockDeviceReader.Exception.Code.ERR_IO == be.code);
+                    assertTrue(be.obj.getName().equals("f2"));
+                }
+                assertTrue(12 == rec.done.size());
+                assertTrue(!new File(new File(dir, "d1"), "f2").exists());
+            }
+            finally {
+                assertTrue(TestUtils.removeDir(dir, false));
+            }
+        }
+    }
+
+    @Test
+    public void testTimestampRetries() throws IOException {
+        for (int threads : new int[] { 1, 4 }) {
+            for (boolean ignore : new boolean[] { false, true }) {
+                File dir = TestUtils.createTempDir("bdrtest");
+                try {
+                    Properties props = props(threads);
+                    BlockDeviceReader.Props.SETTSTAMPERRS.set(props, ignore);
+
+                    // failures which go away get fixed by the deferred pass
+                    TreeReader rdr = new TreeReader(props, 2, 5);
+                    rdr.stampFails.put("f3", 3);
+                    rdr.stampFails.put("d1", 5);
+                    Recorder rec = new Recorder();
+                    rdr.extract(dir, rec);
+                    assertTrue(10 == rec.done.size());
+                    assertTrue(TSTAMP + 3000L == new File(new File(dir, "d0"), "f3").lastModified());
+                    assertTrue(TSTAMP + 8000L == new File(new File(dir, "d1"), "f3").lastModified());
+                    assertTrue(TSTAMP - 1000L == new File(dir, "d1").lastModified());
+                    assertTrue(rdr.stamps.isEmpty());
+                    assertTrue(TestUtils.removeDir(dir, false) && dir.mkdir());
+
+                    // persistent ones get reported at the end, unless ignored
+                    rdr = new TreeReader(props, 2, 5);
+                    rdr.stampFails.put("f4", Integer.MAX_VALUE);
+                    rec = new Recorder();
+                    try {
+                        rdr.extract(dir, rec);
+                        assertTrue(ignore);
+                    }
+                    catch (BlockDeviceReader.Exception be) {
+                        assertTrue(!ignore);
+                        assertTrue(BlockDeviceReader.Exception.Code.ERR_IO == be.code);
+                        assertTrue(be.obj.getName().equals("f4"));
+                    }
+                    assertTrue(10 == rec.done.size());
+                    assertTrue(rdr.stamps.isEmpty());
+                    assertTrue(0 == rdr.depth);
+                }
+                finally {
+                    assertTrue(TestUtils.removeDir(dir, false));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSink() throws IOException {
+        // a plain callback, collecting everything
+        final List<String> entries = new ArrayList<>();
+        final Map<String, byte[]> contents = new HashMap<>();
+        TreeReader rdr = new TreeReader(props(4), 2, 3);
+        Recorder rec = new Recorder();
+        rdr.extract(new BlockDeviceReader.Sink() {
+            public void directory(String path, Long tstamp) {
+                entries.add(path + "/@" + tstamp);
+            }
+            public OutputStream file(final String path, long size, long tstamp) {
+                entries.add(path + "@" + tstamp);
+                return new ByteArrayOutputStream() {
+                    public void close() {
+                        contents.put(path, toByteArray());
+                    }
+                };
+            }
+        }, rec);
+        assertTrue(6 == rec.done.size());
+        assertTrue(null == rdr.sink);
+        assertTrue(entries.equals(Arrays.asList(
+                "d0/@"    + TSTAMP,
+                "d0/f0@"  + TSTAMP,
+                "d0/f1@"  + (TSTAMP + 1000L),
+                "d0/f2@"  + (TSTAMP + 2000L),
+                "d1/@"    + (TSTAMP - 1000L),
+                "d1/f0@"  + (TSTAMP + 3000L),
+                "d1/f1@"  + (TSTAMP + 4000L),
+                "d1/f2@"  + (TSTAMP + 5000L))));
+        assertTrue(6 == contents.size());
+        for (int idx = 0; idx < 6; idx++) {
+            byte[] data = contents.get("d" + idx / 3 + "/f" + idx % 3);
+            assertTrue(100 + idx == data.length);
+            assertTrue((byte)idx == data[0] && (byte)idx == data[data.length - 1]);
+        }
+        assertTrue(!new File("d0").exists());
+
+        // into a ZIP archive, through the multiple reader
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockDeviceReader.ZipSink zs = new BlockDeviceReader.ZipSink(baos);
+        new BlockDeviceReader.Multiple(new BlockDeviceReader[] {
+                new TreeReader(props(1), 3, 4) }).extract(zs, BlockDeviceReader.Progress2.NULL);
+        zs.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        int files = 0, dirs = 0;
+        ZipEntry ze;
+        while (null != (ze = zis.getNextEntry())) {
+            if (ze.isDirectory()) {
+                final int d = Integer.parseInt(ze.getName().substring(1, 2));
+                assertTrue(ze.getName().equals("d" + d + "/"));
+                assertTrue(TSTAMP - d * 1000L == ze.getLastModifiedTime().toMillis());
+                dirs++;
+                continue;
+            }
+            final int idx = Integer.parseInt(ze.getName().substring(1, 2)) * 4 +
+                            Integer.parseInt(ze.getName().substring(4));
+            assertTrue(TSTAMP + idx * 1000L == ze.getLastModifiedTime().toMillis());
+            byte[] data = IOUtils.readStreamBytes(new FilterInputStream(zis) {
+                public void close() {
+                }
+            });
+            assertTrue(100 + idx == data.length);
+            for (byte b : data) {
+                assertTrue((byte)idx == b);
+            }
+            files++;
+        }
+        assertTrue(3 == dirs);
+        assertTrue(12 == files);
+    }
+
+    /** Reader recognizing a magic byte at the start of the device. */
+    static class MagicReader extends BlockDeviceReader {
+        final byte magic;
+        final int  score;
+        final List<String> log;
+
+        MagicReader(BlockDevice bdev, byte magic, int score, List<String> log) {
+            super(bdev, null);
+            this.magic = magic;
+            this.score = score;
+            this.log   = log;
+        }
+
+        public int probe(BlockDevice header) throws IOException {
+            if (0 > this.score) {
+                throw new IOException("probe failed");
+            }
+            byte[] block = new byte[header.blockSize()];
+            header.read(0L, block, 0);
+            header.read(header.size() - 1L, block, 0);
+            header.read(0L, block, 0);
+            return this.magic == block[0] ? this.score : 0;
+        }
+
+        public void extract(File toDir, Progress progress) throws IOException {
+            synchronized(this.log) {
+                this.log.add("extract" + this.magic + "/" + this.score);
+            }
+            if (2 == this.score) {
+                throw new MountException("false positive");
+            }
+        }
+    }
+
+    @Test
+    public void testProbing() throws IOException {
+        final int[] reads = new int[1];
+        BlockDeviceImpl.MemoryBlockDevice mbd = new BlockDeviceImpl.MemoryBlockDevice(512, 1000, false, false) {
+            public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+                synchronized(reads) {
+                    reads[0] += count;
+                }
+                super.readBlocks(first, count, buf, ofs);
+            }
+            public void read(long num, byte[] block, int ofs) throws IOException {
+                synchronized(reads) {
+                    reads[0]++;
+                }
+                super.read(num, block, ofs);
+            }
+        };
+        mbd.buffer()[0] = 7;
+
+        List<String> log = new ArrayList<>();
+        BlockDeviceReader.Multiple mrdr = new BlockDeviceReader.Multiple(new BlockDeviceReader[] {
+                new MagicReader(mbd, (byte)5, 9, log),
+                new MagicReader(mbd, (byte)7, 3, log),
+                new MagicReader(mbd, (byte)7, 0, log),
+                new MagicReader(mbd, (byte)7, -1, log),
+                new MagicReader(mbd, (byte)7, 2, log),
+                new MagicReader(mbd, (byte)7, 3, log),
+        });
+        mrdr.extract(new File("."), BlockDeviceReader.Progress2.NULL);
+
+        // the header got read once, plus the one block beyond per probe
+        assertTrue(64 + 5 == reads[0]);
+        assertTrue(log.equals(Arrays.asList("extract7/3")));
+
+        // the false positive gets skipped
+        log.clear();
+        reads[0] = 0;
+        Properties props = new Properties();
+        BlockDeviceReader.Multiple.PROBE_BLOCKS.set(props, 1000);
+        mrdr = new BlockDeviceReader.Multiple(new BlockDeviceReader[] {
+                new MagicReader(mbd, (byte)7, 2, log),
+                new MagicReader(mbd, (byte)7, 1, log),
+                new MagicReader(mbd, (byte)7, 2, log),
+        }, props);
+        mrdr.extract(new File("."), BlockDeviceReader.Progress2.NULL);
+        assertTrue(1000 == reads[0]);
+        assertTrue(log.equals(Arrays.asList("extract7/2", "extract7/2", "extract7/1")));
+
+        // nothing matches at all
+        log.clear();
+        mrdr = new BlockDeviceReader.Multiple(new BlockDeviceReader[] {
+                new MagicReader(mbd, (byte)1, 5, log),
+                new MagicReader(mbd, (byte)7, -1, log)
+        });
+        try {
+            mrdr.extract(new File("."), BlockDeviceReader.Progress2.NULL);
+            fail();
+        }
+        catch (BlockDeviceReader.MountException expected) {
+        }
+        assertTrue(log.isEmpty());
+
+        // no probes, so no header reads either
+        reads[0] = 0;
+        mrdr = new BlockDeviceReader.Multiple(new BlockDeviceReader[] {
+                new BlockDeviceReader(mbd, null) {
+                    public void extract(File toDir, Progress progress) throws IOException {
+                        log.add("plain");
+                    }
+                }
+        });
+        mrdr.extract(new File("."), BlockDeviceReader.Progress2.NULL);
+        assertTrue(0 == reads[0]);
+        assertTrue(log.equals(Arrays.asList("plain")));
+    }
+}
@@ -7,8 +7,11 @@ import static org.junit.Assert.fail;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -19,7 +22,7 @@ import de.org.mhahnc.baselib.util.BytePtr;
 public class BlockDeviceTest {
     @Test
     public void test0() throws IOException {
-        for (int type = 0; type < 2; type++) {
+        for (int type = 0; type < 5; type++) {
             final int NUM_OF_BLOCKS = 37;
 
             BlockDevice bd = null;
@@ -44,6 +47,29 @@ public class BlockDeviceTest {
                                 BlockDeviceImpl.DEFAULT_BLOCKSIZE, -1L, false, false);
                         break;
                     }
+                    case 2:
+                    case 3: {
+                        fl = new File(System.getProperty("java.io.tmpdir"),
+                                      "BlockDeviceTest_test0");
+
+                        raf = new RandomAccessFile(fl, "rw");
+                        raf.setLength(NUM_OF_BLOCKS * BlockDeviceImpl.DEFAULT_BLOCKSIZE);
+
+                        bd = new BlockDeviceImpl.ChannelBlockDevice(raf.getChannel(),
+                                BlockDeviceImpl.DEFAULT_BLOCKSIZE, -1L, false, false, 3 == type);
+                        break;
+                    }
+                    case 4: {
+                        fl = new File(System.getProperty("java.io.tmpdir"),
+                                      "BlockDeviceTest_test0");
+
+                        raf = new RandomAccessFile(fl, "rw");
+
+                        bd = new BlockDeviceImpl.MappedBlockDevice(raf.getChannel(),
+                                BlockDeviceImpl.DEFAULT_BLOCKSIZE, NUM_OF_BLOCKS, false, false,
+                                BlockDeviceImpl.DEFAULT_BLOCKSIZE * 4);
+                        break;
+                    }
                     default: {
                         fail();
                     }
@@ -88,6 +114,188 @@ public class BlockDeviceTest {
         }
     }
 
+    @Test
+    public void testRanges() throws IOException {
+        for (int type = 0; type < 5; type++) {
+            final int NUM_OF_BLOCKS = 29;
+            final int BSZ = BlockDeviceImpl.DEFAULT_BLOCKSIZE;
+
+            BlockDevice bd = null;
+            File fl = null;
+            RandomAccessFile raf = null;
+
+            try {
+                if (0 == type) {
+                    bd = new BlockDeviceImpl.MemoryBlockDevice(
+                            BSZ, NUM_OF_BLOCKS, false, false);
+                }
+                else {
+                    fl = new File(System.getProperty("java.io.tmpdir"),
+                                  "BlockDeviceTest_testRanges");
+                    raf = new RandomAccessFile(fl, "rw");
+                    raf.setLength(NUM_OF_BLOCKS * BSZ);
+                    bd = 1 == type ?
+                        new BlockDeviceImpl.FileBlockDevice(raf, BSZ, -1L, false, false) :
+                         4 == type ?
+                        new BlockDeviceImpl.MappedBlockDevice(raf.getChannel(),
+                                BSZ, -1L, false, false, BSZ * 3) :
+                        new BlockDeviceImpl.ChannelBlockDevice(raf.getChannel(),
+                                BSZ, -1L, false, false, 3 == type);
+                }
+
+                byte[] buf = new byte[1 + NUM_OF_BLOCKS * BSZ];
+                for (int i = 0; i < NUM_OF_BLOCKS; i++) {
+                    Arrays.fill(buf, 1 + i * BSZ, 1 + (i + 1) * BSZ, (byte)i);
+                }
+                bd.writeBlocks(0, 7, buf, 1);
+                bd.writeBlocks(7, NUM_OF_BLOCKS - 7, buf, 1 + 7 * BSZ);
+
+                try {
+                    bd.writeBlocks(NUM_OF_BLOCKS - 1, 2, buf, 1);
+                    fail();
+                }
+                catch (IOException expected) {
+                }
+
+                byte[] block = new byte[BSZ];
+                for (int i = 0; i < NUM_OF_BLOCKS; i++) {
+                    bd.read(i, block, 0);
+                    assertTrue(BinUtils.checkFillValue(block, 0, BSZ, (byte)i));
+                }
+
+                byte[] buf2 = new byte[2 + 5 * BSZ];
+                buf2[0] = buf2[buf2.length - 1] = (byte)0xaa;
+                bd.readBlocks(11, 5, buf2, 1);
+                assertTrue((byte)0xaa == buf2[0]);
+                assertTrue((byte)0xaa == buf2[buf2.length - 1]);
+                for (int i = 0; i < 5; i++) {
+                    assertTrue(BinUtils.checkFillValue(buf2, 1 + i * BSZ, BSZ, (byte)(11 + i)));
+                }
+                bd.close(false);
+                bd = null;
+            }
+            finally {
+                if (null != bd) bd.close(true);
+                if (null != raf) raf.close();
+                if (null != fl) assertTrue(fl.delete());
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockDevice bd = new BlockDeviceImpl.OutputStreamBlockDevice(baos, 10L, 10, false);
+        byte[] buf = new byte[100];
+        TestUtils.fillPattern123(buf);
+        bd.writeBlocks(0, 3, buf, 0);
+        try {
+            bd.writeBlocks(4, 1, buf, 30);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        bd.writeBlocks(3, 7, buf, 30);
+        bd.close(false);
+        assertTrue(BinUtils.arraysEquals(buf, baos.toByteArray()));
+    }
+
+    @Test
+    public void testChannelConcurrency() throws Exception {
+        final int THREADS = 8;
+        final int BLOCKS_PER_THREAD = 100;
+        final int BSZ = 64;
+
+        File fl = new File(System.getProperty("java.io.tmpdir"),
+                           "BlockDeviceTest_testChannelConcurrency");
+        RandomAccessFile raf = new RandomAccessFile(fl, "rw");
+        try {
+            raf.setLength(THREADS * BLOCKS_PER_THREAD * BSZ);
+            for (boolean direct : new boolean[] { false, true }) {
+                final BlockDevice bd = new BlockDeviceImpl.ChannelBlockDevice(
+                        raf.getChannel(), BSZ, -1L, false, false, direct);
+                final AtomicInteger errs = new AtomicInteger();
+                Thread[] thrds = new Thread[THREADS];
+                for (int t = 0; t < THREADS; t++) {
+                    final int tt = t;
+                    thrds[t] = new Thread(() -> {
+                        byte[] block = new byte[BSZ];
+                        try {
+                            // interleaved, so all of the threads hit the same area
+                            for (int i = 0; i < BLOCKS_PER_THREAD; i++) {
+                                Arrays.fill(block, (byte)(tt + i));
+                                bd.write(i * THREADS + tt, block, 0);
+                            }
+                            for (int i = 0; i < BLOCKS_PER_THREAD; i++) {
+                                bd.read(i * THREADS + tt, block, 0);
+                                if (!BinUtils.checkFillValue(block, 0, BSZ, (byte)(tt + i))) {
+                                    errs.incrementAndGet();
+                                }
+                            }
+                        }
+                        catch (IOException ioe) {
+                            errs.incrementAndGet();
+                        }
+                    });
+                    thrds[t].start();
+                }
+                for (Thread thrd : thrds) {
+                    thrd.join();
+                }
+                assertTrue(0 == errs.get());
+            }
+        }
+        finally {
+            raf.close();
+            assertTrue(fl.delete());
+        }
+    }
+
+    @Test
+    public void testMappedLarge() throws IOException {
+        final int  BSZ = 4096;
+        final long NUM_OF_BLOCKS = (3L << 30) / BSZ;   // beyond 2GB, sparse
+
+        File fl = new File(System.getProperty("java.io.tmpdir"),
+                           "BlockDeviceTest_testMappedLarge");
+        RandomAccessFile raf = new RandomAccessFile(fl, "rw");
+        try {
+            BlockDeviceImpl.MappedBlockDevice bd = new BlockDeviceImpl.MappedBlockDevice(
+                    raf.getChannel(), BSZ, NUM_OF_BLOCKS, false, false);
+            assertTrue(NUM_OF_BLOCKS == bd.size());
+
+            byte[] buf = new byte[BSZ * 2];
+            TestUtils.fillPattern123(buf);
+            final long last = NUM_OF_BLOCKS - 2;
+            bd.writeBlocks(last, 2, buf, 0);
+            bd.write((1L << 31) / BSZ, buf, 0);
+
+            ByteBuffer bb = bd.block(last + 1);
+            assertTrue(BSZ == bb.remaining());
+            for (int i = 0; i < BSZ; i++) {
+                assertTrue(buf[BSZ + i] == bb.get(i));
+            }
+            try {
+                bd.block(NUM_OF_BLOCKS);
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            bd.close(false);
+
+            raf = new RandomAccessFile(fl, "r");
+            assertTrue(NUM_OF_BLOCKS * BSZ == raf.length());
+            byte[] buf2 = new byte[BSZ * 2];
+            raf.seek(last * BSZ);
+            raf.readFully(buf2);
+            assertTrue(BinUtils.arraysEquals(buf, buf2));
+            raf.seek(1L << 31);
+            raf.readFully(buf2, 0, BSZ);
+            assertTrue(TestUtils.checkPattern123(buf2, 0, BSZ));
+        }
+        finally {
+            raf.close();
+            assertTrue(fl.delete());
+        }
+    }
+
     @Test
     public void testSerialWriting() throws IOException {
         byte[] block = new byte[10];
@@ -136,6 +344,7 @@ public class BlockDeviceTest {
         catch (IOException ioe) {
         }
 
+        bd.close(false);
         baos.close();
         byte[] vol = baos.toByteArray();
 
@@ -145,4 +354,74 @@ public class BlockDeviceTest {
             assertTrue(TestUtils.checkPattern123(new BytePtr(vol, ofs, 10)));
         }
     }
+
+    @Test
+    public void testOutputStreamBuffering() throws IOException {
+        for (int bufSize : new int[] { 0, 100, 1000, BlockDeviceImpl.OutputStreamBlockDevice.DEFAULT_BUFSIZE }) {
+            for (boolean background : new boolean[] { false, true }) {
+                final int[] writes = new int[1];
+                ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+                    public synchronized void write(byte[] b, int off, int len) {
+                        writes[0]++;
+                        super.write(b, off, len);
+                    }
+                };
+                final int blocks = 1000;
+                BlockDeviceImpl.OutputStreamBlockDevice bd = new BlockDeviceImpl.OutputStreamBlockDevice(
+                        baos, blocks, 10, true, bufSize, background);
+
+                byte[] block = new byte[10];
+                byte[] expected = new byte[blocks * 10];
+                for (int num = 0; num < blocks; num++) {
+                    Arrays.fill(block, (byte)num);
+                    System.arraycopy(block, 0, expected, num * 10, 10);
+                    if (0 == num % 7) {
+                        final int count = Math.min(5, blocks - num);
+                        byte[] buf = new byte[count * 10];
+                        for (int i = 0; i < count; i++) {
+                            Arrays.fill(buf, i * 10, (i + 1) * 10, (byte)(num + i));
+                            System.arraycopy(buf, i * 10, expected, (num + i) * 10, 10);
+                        }
+                        bd.writeBlocks(num, count, buf, 0);
+                        num += count - 1;
+                    }
+                    else {
+                        bd.write(num, block, 0);
+                    }
+                    if (500 == num) {
+                        bd.flush();
+                        assertTrue(501 * 10 == baos.size());
+                    }
+                }
+                bd.close(false);
+                assertTrue(Arrays.equals(expected, baos.toByteArray()));
+                if (0 == bufSize) {
+                    assertTrue(writes[0] > blocks / 10);
+                }
+                else {
+                    assertTrue(writes[0] <= 2 + 2 * blocks * 10 / bufSize);
+                }
+            }
+        }
+
+        // errors of the background writer must be reported
+        BlockDeviceImpl.OutputStreamBlockDevice bd = new BlockDeviceImpl.OutputStreamBlockDevice(
+                new OutputStream() {
+                    public void write(int b) throws IOException {
+                        throw new IOException("broken");
+                    }
+                }, 1000, 10, true, 100, true);
+        byte[] block = new byte[10];
+        try {
+            for (int num = 0; num < 1000; num++) {
+                bd.write(num, block, 0);
+            }
+            bd.close(false);
+            fail();
+        }
+        catch (IOException expected) {
+            assertTrue(expected.getMessage().equals("broken"));
+            bd.close(true);
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingBlockDeviceTest {
+    final static int BSZ = 32;
+
+    static class CountingBlockDevice extends BlockDeviceImpl.MemoryBlockDevice {
+        public CountingBlockDevice(long size) throws IOException {
+            super(BSZ, size, false, false);
+        }
+        public void internalRead(long num, byte[] block, int ofs) throws IOException {
+            this.reads.incrementAndGet();
+            super.internalRead(num, block, ofs);
+        }
+        protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+            this.writes.incrementAndGet();
+            super.internalWrite(num, block, ofs);
+        }
+        final AtomicInteger reads  = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        final int blocks = 200;
+        for (CachingBlockDevice.Policy policy : CachingBlockDevice.Policy.values()) {
+            for (boolean writeBack : new boolean[] { false, true }) {
+                for (int capacity : new int[] { 1, 7, 64, 1000 }) {
+                    CountingBlockDevice cnt = new CountingBlockDevice(blocks);
+                    CachingBlockDevice cbd = new CachingBlockDevice(cnt, capacity, policy, writeBack);
+
+                    assertTrue(BSZ == cbd.blockSize());
+                    assertTrue(blocks == cbd.size());
+                    assertFalse(cbd.readOnly());
+                    assertFalse(cbd.writeOnly());
+                    assertFalse(cbd.serialWrite());
+
+                    byte[] ref = new byte[blocks * BSZ];
+                    byte[] block = new byte[BSZ];
+                    Random rnd = new Random(capacity);
+                    for (int i = 0; i < 5000; i++) {
+                        final int num = rnd.nextInt(blocks);
+                        if (rnd.nextInt(3) == 0) {
+                            rnd.nextBytes(block);
+                            System.arraycopy(block, 0, ref, num * BSZ, BSZ);
+                            cbd.write(num, block, 0);
+                        }
+                        else {
+                            cbd.read(num, block, 0);
+                            for (int j = 0; j < BSZ; j++) {
+                                assertTrue(block[j] == ref[num * BSZ + j]);
+                            }
+                        }
+                    }
+                    cbd.close(false);
+
+                    assertTrue(Arrays.equals(ref, cnt.buffer()));
+
+                    CachingBlockDevice.Stats stats = cbd.stats();
+                    assertTrue(stats.misses == cnt.reads.get());
+                    assertTrue(0 < stats.hits);
+                    if (writeBack) {
+                        assertTrue(stats.writeBacks == cnt.writes.get());
+                    }
+                    else {
+                        assertTrue(0 == stats.writeBacks);
+                    }
+                    assertFalse(stats.toString().isEmpty());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHitsAndEviction() throws IOException {
+        for (CachingBlockDevice.Policy policy : CachingBlockDevice.Policy.values()) {
+            CountingBlockDevice cnt = new CountingBlockDevice(100);
+            // one segment only, so the eviction order is predictable
+            CachingBlockDevice cbd = new CachingBlockDevice(cnt, 1, policy, false);
+
+            byte[] block = new byte[BSZ];
+            cbd.read(1, block, 0);
+            cbd.read(1, block, 0);
+            cbd.read(1, block, 0);
+            cbd.read(2, block, 0);
+            cbd.read(1, block, 0);
+
+            CachingBlockDevice.Stats stats = cbd.stats();
+            assertTrue(2 == stats.hits);
+            assertTrue(3 == stats.misses);
+            assertTrue(2 == stats.evictions);
+            assertTrue(3 == cnt.reads.get());
+        }
+    }
+
+    @Test
+    public void testWriteBack() throws IOException {
+        CountingBlockDevice cnt = new CountingBlockDevice(100);
+        CachingBlockDevice cbd = new CachingBlockDevice(cnt, 1000, CachingBlockDevice.Policy.CLOCK, true);
+
+        byte[] block = new byte[BSZ];
+        for (int num = 0; num < 10; num++) {
+            Arrays.fill(block, (byte)num);
+            cbd.write(num, block, 0);
+            cbd.write(num, block, 0);
+        }
+        assertTrue(0 == cnt.writes.get());
+        for (int num = 0; num < 10; num++) {
+            cbd.read(num, block, 0);
+            assertTrue(block[0] == num);
+        }
+        assertTrue(0 == cnt.reads.get());
+
+        cbd.flush();
+        assertTrue(10 == cnt.writes.get());
+        cbd.flush();
+        assertTrue(10 == cnt.writes.get());
+
+        cbd.write(50, block, 0);
+        cbd.close(true);
+        assertTrue(10 == cnt.writes.get());
+        cbd.close(false);
+
+        try {
+            cbd = new CachingBlockDevice(cnt, 0, CachingBlockDevice.Policy.LRU, true);
+            fail();
+        }
+        catch (IllegalArgumentException iae) {
+        }
+        try {
+            cbd = new CachingBlockDevice(new BlockDeviceImpl.NullWriteDevice(BSZ), 1,
+                                         CachingBlockDevice.Policy.LRU, true);
+            fail();
+        }
+        catch (IllegalArgumentException iae) {
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final int blocks = 500;
+        final CountingBlockDevice cnt = new CountingBlockDevice(blocks);
+        final byte[] block = new byte[BSZ];
+        for (int num = 0; num < blocks; num++) {
+            Arrays.fill(block, (byte)num);
+            cnt.write(num, block, 0);
+        }
+        for (CachingBlockDevice.Policy policy : CachingBlockDevice.Policy.values()) {
+            final CachingBlockDevice cbd = new CachingBlockDevice(cnt, 100, policy, false);
+            final AtomicInteger errs = new AtomicInteger();
+            Thread[] thrds = new Thread[8];
+            for (int t = 0; t < thrds.length; t++) {
+                final int seed = t;
+                thrds[t] = new Thread(() -> {
+                    Random rnd = new Random(seed);
+                    byte[] buf = new byte[BSZ];
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            // skewed, so there are plenty of hits
+                            final int num = rnd.nextInt(1 + rnd.nextInt(blocks));
+                            cbd.read(num, buf, 0);
+                            for (byte b : buf) {
+                                if (b != (byte)num) {
+                                    errs.incrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                    catch (IOException ioe) {
+                        errs.incrementAndGet();
+                    }
+                });
+            }
+            for (Thread thrd : thrds) {
+                thrd.start();
+            }
+            for (Thread thrd : thrds) {
+                thrd.join();
+            }
+            assertTrue(0 == errs.get());
+            CachingBlockDevice.Stats stats = cbd.stats();
+            assertTrue(8 * 20000 == stats.hits + stats.misses);
+            assertTrue(0 < stats.hits);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConcatBlockDeviceTest {
+    final static int BSZ = 16;
+
+    @Test
+    public void test0() throws IOException {
+        final int[] sizes = { 5, 0, 17, 1, 0, 40 };
+        BlockDeviceImpl.MemoryBlockDevice[] mems = new BlockDeviceImpl.MemoryBlockDevice[sizes.length];
+        int total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            mems[i] = new BlockDeviceImpl.MemoryBlockDevice(BSZ, sizes[i], false, false);
+            total += sizes[i];
+        }
+        ConcatBlockDevice cbd = new ConcatBlockDevice(mems);
+        assertTrue(total == cbd.size());
+        assertTrue(BSZ == cbd.blockSize());
+        assertFalse(cbd.readOnly());
+        assertFalse(cbd.writeOnly());
+        assertFalse(cbd.serialWrite());
+
+        byte[] ref = new byte[total * BSZ];
+        byte[] buf = new byte[ref.length];
+        Random rnd = new Random(0xc0c0);
+        for (int i = 0; i < 1000; i++) {
+            final int count = 1 + rnd.nextInt(total);
+            final int first = rnd.nextInt(total - count + 1);
+            if (rnd.nextBoolean()) {
+                rnd.nextBytes(buf);
+                System.arraycopy(buf, 0, ref, first * BSZ, count * BSZ);
+                if (1 == count) {
+                    cbd.write(first, buf, 0);
+                }
+                else {
+                    cbd.writeBlocks(first, count, buf, 0);
+                }
+            }
+            else {
+                if (1 == count) {
+                    cbd.read(first, buf, 0);
+                }
+                else {
+                    cbd.readBlocks(first, count, buf, 0);
+                }
+                for (int j = 0; j < count * BSZ; j++) {
+                    assertTrue(buf[j] == ref[first * BSZ + j]);
+                }
+            }
+        }
+        for (int i = 0, num = 0; i < sizes.length; i++) {
+            for (int j = 0; j < sizes[i] * BSZ; j++) {
+                assertTrue(mems[i].buffer()[j] == ref[num * BSZ + j]);
+            }
+            num += sizes[i];
+        }
+        try {
+            cbd.readBlocks(total - 1, 2, buf, 0);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        cbd.close(false);
+    }
+
+    @Test
+    public void testSerial() throws IOException {
+        ByteArrayOutputStream baos1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream baos2 = new ByteArrayOutputStream();
+        ConcatBlockDevice cbd = new ConcatBlockDevice(
+                new BlockDeviceImpl.OutputStreamBlockDevice(baos1, 3, BSZ, true),
+                new BlockDeviceImpl.OutputStreamBlockDevice(baos2, 4, BSZ, true));
+        assertTrue(cbd.serialWrite());
+        assertTrue(cbd.writeOnly());
+
+        byte[] buf = new byte[BSZ * 7];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte)(i / BSZ);
+        }
+        cbd.writeBlocks(0, 2, buf, 0);
+        cbd.writeBlocks(2, 5, buf, 2 * BSZ);
+        try {
+            cbd.write(0, buf, 0);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        cbd.close(false);
+        assertTrue(3 * BSZ == baos1.size());
+        assertTrue(4 * BSZ == baos2.size());
+        assertTrue(3 == baos2.toByteArray()[0]);
+
+        try {
+            new ConcatBlockDevice(
+                new BlockDeviceImpl.MemoryBlockDevice(BSZ    , 1, false, false),
+                new BlockDeviceImpl.MemoryBlockDevice(BSZ * 2, 1, false, false));
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+}
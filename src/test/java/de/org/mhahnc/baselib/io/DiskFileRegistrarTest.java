@@ -0,0 +1,225 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.org.mhahnc.baselib.io.FileRegistrar.Callback.Merge;
+import de.org.mhahnc.baselib.io.FileRegistrar.Directory;
+import de.org.mhahnc.baselib.io.FileRegistrar.InMemory.DefCmp;
+import de.org.mhahnc.baselib.test.util.TestUtils;
+import de.org.mhahnc.baselib.util.MiscUtils;
+
+public class DiskFileRegistrarTest {
+    static String dump(FileRegistrar freg) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FileRegistrar.dump(freg.root(), 0, new PrintStream(baos));
+        return baos.toString();
+    }
+
+    static int bulk(FileRegistrar freg, FileNode dir, FileNode bottom) throws IOException {
+        return FileRegistrar.bulk(freg, dir, bottom, null,
+            new FileRegistrar.BulkCallbacks() {
+                public boolean onProgress(FileNode current            ) { return true; }
+                public Merge   onMerge   (FileNode[] nd0, FileNode nd1) { fail(); return Merge.ABORT; }
+                public boolean matches   (FileNode file               ) { return true; }
+            },
+            true, true);
+    }
+
+    @Test
+    public void test0() throws IOException {
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        for (int d = 0; d < 5; d++) {
+            // reversed to have the runs not match the registration order
+            for (int f = 99; f >= 0; f--) {
+                dfs.createFile("f" + f + (0 == f % 7 ? "ä€" : ""),
+                               new String[] { "R", "d" + d, "s" + (f % 3) },
+                               f, d * 1000L + f, 0 == f % 2 ? FileNode.ATTR_HIDDEN : 0, true);
+            }
+        }
+        FileNode root = dfs.nodeFromString("R/");
+
+        FileRegistrar fregm = new FileRegistrar.InMemory(new DefCmp(false));
+        File tmpDir = TestUtils.createTempDir("DiskFileRegistrarTest.test0");
+        DiskFileRegistrar fregd = new DiskFileRegistrar(new DefCmp(false), tmpDir, 7);
+        assertTrue(0 < bulk(fregm, root, null));
+        assertTrue(0 < bulk(fregd, root, null));
+        assertTrue(0 < fregd.spilled());
+        assertEquals(dump(fregm), dump(fregd));
+
+        Directory dir = fregd.root().dirs().next().dirs().next();
+        assertEquals("s0", dir.nodes()[0].name());
+        Iterator<FileNode> ifn = dir.files();
+        FileNode fn = ifn.next();
+        assertEquals("R/d0/s0/f0ä€", fn.path(true));
+        assertTrue(fn.fileSystem() == dfs);
+        assertTrue(0 == fn.timestamp());
+        assertTrue(dir == fregd.getNodeDirectory(fn));
+        assertTrue(fn.equals(dfs.nodeFromString("R/d0/s0/f0ä€")));
+        fn = ifn.next();
+        assertEquals("f12", fn.name());
+        assertTrue(12 == fn.size());
+        assertTrue(fn.hasAttributes(FileNode.ATTR_HIDDEN));
+
+        // collisions with spilled files
+        FileNode nd = new FileNode.Virtual(dfs.nodeFromString("R/d0/s0"), "F12", 1, 2, 0);
+        assertFalse(fregd.add(Arrays.asList(nd), root, null, (nd0, nd1) -> {
+            assertEquals("f12", nd0[0].name());
+            assertTrue(12 == nd0[0].size());
+            return Merge.ABORT;
+        }));
+        assertTrue(fregd.add(Arrays.asList(nd), root, null, (nd0, nd1) -> Merge.IGNORE));
+        ifn = dir.files();
+        ifn.next();
+        assertTrue(12 == ifn.next().size());
+        assertNull(fregd.getNodeDirectory(nd));
+        assertTrue(fregd.add(Arrays.asList(nd), root, null, (nd0, nd1) -> Merge.REPLACE));
+        assertTrue(dir == fregd.getNodeDirectory(nd));
+        int c = 0;
+        ifn = dir.files();
+        String last = "";
+        while (ifn.hasNext()) {
+            fn = ifn.next();
+            assertTrue(0 > last.compareToIgnoreCase(fn.name()));
+            last = fn.name();
+            if ("F12".equals(fn.name())) {
+                assertTrue(fn == nd);
+            }
+            assertFalse("f12".equals(fn.name()));
+            c++;
+        }
+        assertTrue(34 == c);
+
+        fregd.close();
+        assertTrue(0 == tmpDir.list().length);
+        assertTrue(TestUtils.removeDir(tmpDir, true));
+    }
+
+    @Test
+    public void testLocal() throws IOException {
+        File tmpDir = TestUtils.createTempDir("DiskFileRegistrarTest.testLocal");
+        for (int i = 0; i < 10; i++) {
+            TestUtils.fillFile123(new File(tmpDir, "file" + i), i * 100);
+        }
+        LocalFileSystem lfs = new LocalFileSystem(false);
+        try (DiskFileRegistrar freg = new DiskFileRegistrar(new DefCmp(false), null, 3)) {
+            FileNode dn = lfs.nodeFromString(tmpDir.getAbsolutePath());
+            assertTrue(10 == bulk(freg, dn, dn));
+            Iterator<FileNode> ifn = freg.root().dirs().next().files();
+            int c = 0;
+            while (ifn.hasNext()) {
+                FileNode fn = ifn.next();
+                assertEquals("file" + c, fn.name());
+                assertTrue(c * 100 == fn.size());
+                try (InputStream ins = lfs.openRead(fn)) {
+                    byte[] buf = new byte[1000];
+                    int read = ins.read(buf);
+                    assertTrue(0 == c ? -1 == read : c * 100 == read);
+                    if (0 < c) {
+                        assertTrue(TestUtils.checkPattern123(buf, 0, read));
+                    }
+                }
+                c++;
+            }
+            assertTrue(10 == c);
+        }
+        assertTrue(TestUtils.removeDir(tmpDir, true));
+    }
+
+    @Test
+    public void testLongNames() throws IOException {
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        FileNode dir = dfs.nodeFromString("R/");
+        final String lnk = MiscUtils.fillString(20000, '\u20ac');
+        try (DiskFileRegistrar freg = new DiskFileRegistrar(new DefCmp(false), null, 1)) {
+            for (int i = 0; i < 3; i++) {
+                final String name = MiscUtils.fillString(20000, (char)('a' + i));
+                // name and link together are larger than the write buffer
+                FileNode nd = new FileNode.Virtual(dir, name, i, i, 0) {
+                    protected String link() {
+                        return lnk;
+                    }
+                };
+                assertTrue(freg.add(Arrays.asList(nd), dir, null, (nd0, nd1) -> Merge.ABORT));
+            }
+            assertTrue(2 * (20000 + 60000) < freg.spilled());
+            Iterator<FileNode> ifn = freg.root().files();
+            for (int i = 0; i < 3; i++) {
+                FileNode fn = ifn.next();
+                assertEquals(MiscUtils.fillString(20000, (char)('a' + i)), fn.name());
+                assertEquals(lnk, fn.link());
+                assertTrue(i == fn.size());
+            }
+            assertFalse(ifn.hasNext());
+
+            // rejected right away, without any harm done
+            final long spilled = freg.spilled();
+            FileNode nd = new FileNode.Virtual(dir, MiscUtils.fillString(40000, '\u00e4'), 0, 0, 0);
+            try {
+                freg.add(Arrays.asList(nd), dir, null, (nd0, nd1) -> Merge.ABORT);
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            assertNull(freg.getNodeDirectory(nd));
+            assertTrue(spilled == freg.spilled());
+            nd = new FileNode.Virtual(dir, "z", 3, 3, 0);
+            assertTrue(freg.add(Arrays.asList(nd), dir, null, (nd0, nd1) -> Merge.ABORT));
+            ifn = freg.root().files();
+            int c = 0;
+            while (ifn.hasNext()) {
+                assertTrue(c == ifn.next().size());
+                c++;
+            }
+            assertTrue(4 == c);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        FileNode dir = dfs.nodeFromString("R/");
+        Random rnd = new Random(0xbeef);
+        try (DiskFileRegistrar freg = new DiskFileRegistrar(new DefCmp(false), null, 10)) {
+            FileRegistrar fregm = new FileRegistrar.InMemory(new DefCmp(false));
+            for (int i = 0; i < 5000; i++) {
+                final FileNode nd = new FileNode.Virtual(dir, "f" + rnd.nextInt(3000), i, i, 0);
+                for (FileRegistrar freg2 : new FileRegistrar[] { freg, fregm }) {
+                    assertTrue(freg2.add(Arrays.asList(nd), dir, null, (nd0, nd1) ->
+                        0 == (nd1.size() & 1) ? Merge.REPLACE : Merge.IGNORE));
+                }
+                // the live records at least halve from one run to the next
+                final ArrayList<DiskFileRegistrar.Run> runs = ((DiskFileRegistrar.SpillDir)freg.root()).runs;
+                for (int r = 1; r < runs.size(); r++) {
+                    assertTrue(runs.get(r).live() * 2 < runs.get(r - 1).live());
+                }
+                assertTrue(runs.size() <= 9);
+            }
+            assertEquals(dump(fregm), dump(freg));
+            Iterator<FileNode> ifn0 = fregm.root().files();
+            Iterator<FileNode> ifn1 = freg.root().files();
+            while (ifn0.hasNext()) {
+                assertTrue(ifn0.next().size() == ifn1.next().size());
+            }
+            assertFalse(ifn1.hasNext());
+        }
+    }
+}
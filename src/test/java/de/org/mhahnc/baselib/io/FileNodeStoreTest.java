@@ -0,0 +1,142 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class FileNodeStoreTest {
+    @Test
+    public void test0() throws IOException {
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        dfs.createFile("a.txt", new String[] { "R", "x" }, 10, 1000, 0, true);
+        dfs.createFile("bä€.bin", new String[] { "R", "x" }, 20, 2000, FileNode.ATTR_HIDDEN, true);
+        dfs.createFile("c", new String[] { "R", "y", "z" }, 30, 3000, FileNode.ATTR_READONLY, true);
+
+        FileNodeStore fns = new FileNodeStore();
+        assertTrue(0 == fns.size());
+
+        int c = 0;
+        for (String expr : new String[] { "R/x/a.txt", "R/x/bä€.bin", "R/y/z/c" }) {
+            FileNode fn = dfs.nodeFromString(expr);
+            fn.setTag("t", expr);
+            final int idx = fns.add(fn);
+            FileNode fw = fns.node(idx);
+            assertTrue(idx == fns.index(fw));
+            assertEquals(fn.name(), fw.name());
+            assertTrue(fn.size() == fw.size());
+            assertTrue(fn.timestamp() == fw.timestamp());
+            assertTrue(fn.attributes() == fw.attributes());
+            assertEquals(fn.path(true), fw.path(true));
+            assertTrue(fw.fileSystem() == dfs);
+            assertEquals(expr, fw.getTag("t"));
+            assertNull(fw.parent().getTag("t"));
+            assertTrue(fw.parent().hasAttributes(FileNode.ATTR_DIRECTORY));
+            assertTrue(fw.root().hasAttributes(FileNode.ATTR_ROOT));
+            assertEquals(fns.node(idx), fw);
+            assertTrue(fns.node(idx).hashCode() == fw.hashCode());
+            // flyweights and regular nodes agree on equality
+            assertTrue(fw.equals(fn));
+            assertTrue(fn.equals(fw));
+            assertTrue(fn.hashCode() == fw.hashCode());
+            assertTrue(new HashSet<>(Arrays.asList(fn)).contains(fw));
+            // virtual copies of flyweights carry the name and the tags over
+            FileNode vn = new FileRegistrar.InMemory.VFileNode(null, fw);
+            assertEquals(fw.name(), vn.name());
+            assertEquals(expr, vn.getTag("t"));
+            assertEquals("v", new FileRegistrar.InMemory.VFileNode("v", fw).name());
+            assertTrue(fns.index(fw) == fns.add(fw));
+            // as do copies into other stores
+            FileNodeStore fns1 = new FileNodeStore();
+            assertEquals(expr, fns1.node(fns1.add(fw)).getTag("t"));
+            c++;
+        }
+        // the parents got stored once
+        assertTrue(7 == fns.size());
+
+        // adding children of flyweights reuses them
+        FileNodeStore fns2 = new FileNodeStore();
+        final int pidx = fns2.add(dfs.nodeFromString("R/x"));
+        final FileNode px = fns2.node(pidx);
+        final int cidx = fns2.add(new FileNode.Virtual(px, "v", 5, 6, 0));
+        assertTrue(3 == fns2.size());
+        assertTrue(pidx == fns2.parent(cidx));
+        assertTrue(pidx == fns2.add(px));
+        assertFalse(fns2.node(cidx).equals(fns.node(cidx)));
+
+        final int nidx = fns2.add(FileNodeStore.NONE, dfs, null, 0, 0, FileNode.ATTR_DIRECTORY);
+        assertNull(fns2.node(nidx).name());
+        assertNull(fns2.node(nidx).parent());
+
+        fns.node(0).setTag("u", 1);
+        assertEquals(1, fns.node(0).getTag("u"));
+        fns.trim();
+        assertTrue(7 == fns.size());
+        // trimming forgets about the parents
+        assertEquals("bä€.bin", fns.name(fns.add(dfs.nodeFromString("R/x/bä€.bin"))));
+        assertTrue(10 == fns.size());
+
+        try {
+            fns.node(fns.size());
+            fail();
+        }
+        catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            fns.add(1000, dfs, "x", 0, 0, 0);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testMany() throws IOException {
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        FileNode root = dfs.nodeFromString("R/");
+        FileNodeStore fns = new FileNodeStore();
+        final int ridx = fns.add(root);
+        for (int d = 0; d < 100; d++) {
+            final int didx = fns.add(ridx, dfs, "dir" + d, 0, d, FileNode.ATTR_DIRECTORY);
+            for (int f = 0; f < 1000; f++) {
+                fns.add(didx, dfs, "file" + f, f, d * 1000L + f, 0);
+            }
+        }
+        assertTrue(1 + 100 * 1001 == fns.size());
+        for (int idx = 0; idx < fns.size(); idx++) {
+            FileNode fn = fns.node(idx);
+            if (fn.hasAttributes(FileNode.ATTR_DIRECTORY)) {
+                continue;
+            }
+            FileNode dir = fn.parent();
+            final long d = dir.timestamp();
+            assertEquals("dir" + d, dir.name());
+            assertTrue(d * 1000L + fn.size() == fn.timestamp());
+            assertEquals("R/dir" + d + "/file" + fn.size(), fn.path(true));
+        }
+
+        // and they can go into a registrar
+        FileRegistrar freg = new FileRegistrar.InMemory(new FileRegistrar.InMemory.DefCmp(false));
+        assertTrue(freg.add(Arrays.asList(fns.node(2), fns.node(3)), null, null,
+                (nd0, nd1) -> FileRegistrar.Callback.Merge.ABORT));
+        Iterator<FileRegistrar.Directory> id = freg.root().dirs();
+        assertTrue(id.hasNext());
+        assertEquals("dir0", id.next().nodes()[0].name());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FileRegistrar.dump(freg.root(), 0, new PrintStream(baos));
+        assertEquals("[]\n  [dir0]\n  file0 (0)\n  file1 (1)\n", baos.toString());
+        assertTrue(freg.toString().contains("'dir0', 1 nodes, 0 dirs, 2 files"));
+    }
+}
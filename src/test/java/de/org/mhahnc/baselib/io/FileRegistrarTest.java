@@ -8,7 +8,9 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.Test;
 
 import de.org.mhahnc.baselib.io.FileRegistrar.Directory;
@@ -443,4 +445,214 @@ public class FileRegistrarTest implements FileRegistrar.Callback {
         assertNotNull(fn);
         assertNull(FileRegistrar.nodePath(fn));
     }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static class LoggingFileReg extends FileRegistrar.InMemory {
+        final List<String> log = new ArrayList<>();
+        LoggingFileReg() {
+            super(new DefCmp(false));
+        }
+        public boolean add(List<FileNode> nodes, FileNode bottom,
+                           Directory parent, Callback cb) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (FileNode fn : nodes) {
+                sb.append(fn.path(true)).append(';');
+            }
+            this.log.add(sb.toString());
+            return super.add(nodes, bottom, parent, cb);
+        }
+    }
+
+    static DbgFileSystem makeTree(int seed) throws IOException {
+        return makeTree(new DbgFileSystem(false, '/'), seed);
+    }
+
+    static DbgFileSystem makeTree(DbgFileSystem result, int seed) throws IOException {
+        result.addRoot("R");
+        Random rnd = new Random(seed);
+        for (int i = 0; i < 2000; i++) {
+            final int depth = 1 + rnd.nextInt(5);
+            String[] path = new String[depth];
+            path[0] = "R";
+            for (int j = 1; j < depth; j++) {
+                path[j] = "d" + rnd.nextInt(4);
+            }
+            if (0 == rnd.nextInt(10)) {
+                result.createFile(null, path, 0, 1, 0, true);   // maybe empty
+            }
+            else {
+                result.createFile("f" + i, path, i, i, 0, true);
+            }
+        }
+        return result;
+    }
+
+    static class CountingCallbacks implements FileRegistrar.BulkCallbacks {
+        final Set<String> progress = new HashSet<>();
+        String abortAt;
+        int    active;
+        volatile int calls;
+        public boolean onProgress(FileNode current) {
+            assertTrue(1 == ++this.active);
+            this.calls++;
+            try {
+                this.progress.add(current.path(true));
+                return !current.path(true).equals(this.abortAt);
+            }
+            finally {
+                this.active--;
+            }
+        }
+        public Merge onMerge(FileNode[] nd0, FileNode nd1) {
+            return Merge.ABORT;
+        }
+        public boolean matches(FileNode file) {
+            assertTrue(1 == ++this.active);
+            this.calls++;
+            this.active--;
+            return !file.name().startsWith("f7");
+        }
+    }
+
+    @Test
+    public void testParallelBulk() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int seed = 0; seed < 4; seed++) {
+                DbgFileSystem dfs = makeTree(seed);
+                FileNode fn = dfs.nodeFromString("R/");
+                for (boolean[] flags : new boolean[][] {
+                        { true , true  },
+                        { true , false },
+                        { false, true  }
+                }) {
+                    LoggingFileReg freg0 = new LoggingFileReg();
+                    CountingCallbacks cb0 = new CountingCallbacks();
+                    final int res0 = FileRegistrar.bulk(freg0, fn, null, null, cb0, flags[0], flags[1]);
+                    LoggingFileReg freg1 = new LoggingFileReg();
+                    CountingCallbacks cb1 = new CountingCallbacks();
+                    final int res1 = FileRegistrar.bulk(freg1, fn, null, null, cb1, flags[0], flags[1], pool);
+                    assertTrue(0 < res0);
+                    assertTrue(res0 == res1);
+                    assertEquals(freg0.log, freg1.log);
+                    assertEquals(freg0.toString(), freg1.toString());
+                    assertEquals(cb0.progress, cb1.progress);
+                }
+            }
+
+            // aborting, registering nothing after the directory in question
+            DbgFileSystem dfs = makeTree(0);
+            FileNode fn = dfs.nodeFromString("R/");
+            LoggingFileReg freg0 = new LoggingFileReg();
+            CountingCallbacks cb = new CountingCallbacks();
+            cb.abortAt = "R/d2/d1";
+            assertTrue(FileRegistrar.BULKERR_ABORTED ==
+                       FileRegistrar.bulk(freg0, fn, null, null, cb, true, true));
+            LoggingFileReg freg1 = new LoggingFileReg();
+            cb = new CountingCallbacks();
+            cb.abortAt = "R/d2/d1";
+            assertTrue(FileRegistrar.BULKERR_ABORTED ==
+                       FileRegistrar.bulk(freg1, fn, null, null, cb, true, true, pool));
+            assertTrue(freg1.log.size() <= freg0.log.size());
+            assertEquals(freg0.log.subList(0, freg1.log.size()), freg1.log);
+
+            // listing errors win over the aborts they caused, and no callbacks
+            // happen after the registration returned
+            DbgFileSystem efs = makeTree(new DbgFileSystem(false, '/') {
+                public Iterator<FileNode> list(FileNode directory, Filter filter) throws IOException {
+                    if (directory.path(true).equals("R/d1")) {
+                        throw new IOException("list failed");
+                    }
+                    return super.list(directory, filter);
+                }
+            }, 1);
+            fn = efs.nodeFromString("R/");
+            for (int i = 0; i < 20; i++) {
+                cb = new CountingCallbacks();
+                try {
+                    FileRegistrar.bulk(new LoggingFileReg(), fn, null, null, cb, true, true, pool);
+                    fail();
+                }
+                catch (IOException expected) {
+                    assertEquals("list failed", expected.getMessage());
+                }
+                final int calls = cb.calls;
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException ie) {
+                }
+                assertTrue(calls == cb.calls);
+            }
+
+            // collisions get reported
+            fn = dfs.nodeFromString("R/");
+            freg1 = new LoggingFileReg();
+            assertTrue(0 < FileRegistrar.bulk(freg1, fn, null, null, new CountingCallbacks(), true, false, pool));
+            assertTrue(FileRegistrar.BULKERR_COLLISION ==
+                       FileRegistrar.bulk(freg1, fn, null, null, new CountingCallbacks(), true, false, pool));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        for (int seed = 0; seed < 3; seed++) {
+            DbgFileSystem dfs = makeTree(seed);
+            FileNode fn = dfs.nodeFromString("R/");
+            FileRegistrar freg0 = new FileRegistrar.InMemory(new DefCmp(false));
+            FileRegistrar freg1 = new FileRegistrar.InMemory(new DefCmp(false), true);
+            final int res = FileRegistrar.bulk(freg0, fn, null, null, new CountingCallbacks(), true, true);
+            assertTrue(0 < res);
+            assertTrue(res == FileRegistrar.bulk(freg1, fn, null, null, new CountingCallbacks(), true, true));
+            assertEquals(freg0.toString(), freg1.toString());
+
+            final List<String> paths0 = new ArrayList<>();
+            FileRegistrar.walk(freg0.root(), nds -> paths0.add(
+                    nds[0].path(true) + "|" + FileRegistrar.nodePath(nds[0])), true, true);
+            final List<String> paths1 = new ArrayList<>();
+            FileRegistrar.walk(freg1.root(), nds -> {
+                assertTrue(freg1.getNodeDirectory(nds[0]) != null);
+                return paths1.add(nds[0].path(true) + "|" + FileRegistrar.nodePath(nds[0]));
+            }, true, true);
+            assertTrue(0 < paths0.size());
+            assertEquals(paths0, paths1);
+        }
+
+        // lots of files in one directory, added in random order
+        DbgFileSystem dfs = new DbgFileSystem(false, '/');
+        dfs.addRoot("R");
+        Random rnd = new Random(0xcafe);
+        List<FileNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            final String name = "F" + rnd.nextInt(4000);
+            nodes.add(dfs.createFile(name, new String[] { "R", "x" }, i, i, 0, true));
+        }
+        FileRegistrar freg0 = new FileRegistrar.InMemory(new DefCmp(false));
+        FileRegistrar freg1 = new FileRegistrar.InMemory(new DefCmp(false), true);
+        for (FileNode nd : nodes) {
+            for (FileRegistrar freg : new FileRegistrar[] { freg0, freg1 }) {
+                assertTrue(freg.add(nodeToList(nd), null, null, (nd0, nd1) -> {
+                    assertEquals(nd0[0].name(), nd1.name());
+                    return 0 == (nd1.size() & 1) ? Merge.REPLACE : Merge.IGNORE;
+                }));
+            }
+        }
+        Iterator<FileNode> ifn0 = freg0.root().dirs().next().files();
+        Iterator<FileNode> ifn1 = freg1.root().dirs().next().files();
+        Directory dir1 = freg1.root().dirs().next();
+        while (ifn0.hasNext()) {
+            final FileNode nd0 = ifn0.next();
+            final FileNode nd1 = ifn1.next();
+            assertFalse(nd0 == nd1);
+            assertEquals(nd0.name(), nd1.name());
+            assertTrue(nd0.size() == nd1.size());
+            assertEquals(nd0.path(true), nd1.path(true));
+            assertTrue(dir1 == freg1.getNodeDirectory(nd1));
+        }
+        assertFalse(ifn1.hasNext());
+    }
 }
@@ -6,6 +6,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -171,4 +172,101 @@ public class LocalFileSystemTest {
 
         assertTrue(TestUtils.removeDir(tmpDir, true));
     }
+
+    @Test
+    public void testListAttributes() throws IOException {
+        File tmpDir = TestUtils.createTempDir("LocalFileSystemTest.testListAttributes");
+        try {
+            TestUtils.fillFile123(new File(tmpDir, "plain.txt"), 1234);
+            TestUtils.fillFile123(new File(tmpDir, ".hidden"), 1);
+            File ro = new File(tmpDir, "readonly.bin");
+            TestUtils.fillFile123(ro, 100);
+            assertTrue(ro.setWritable(false));
+            File ex = new File(tmpDir, "exec.sh");
+            TestUtils.fillFile123(ex, 10);
+            ex.setExecutable(true);
+            assertTrue(new File(tmpDir, "sub").mkdir());
+            assertTrue(new File(tmpDir, "plain.txt").setLastModified(1234567890000L));
+
+            LocalFileSystem lfs = new LocalFileSystem(false);
+            FileNode dir = lfs.nodeFromString(tmpDir.getAbsolutePath());
+
+            // everything java.io.File reports must match
+            Iterator<FileNode> i = lfs.list(dir, null);
+            int c = 0;
+            while (i.hasNext()) {
+                FileNode fn = i.next();
+                File fl = new File(fn.path(true));
+                assertEquals(tmpDir, fl.getParentFile());
+                assertTrue(fl.length()       == fn.size());
+                assertTrue(fl.lastModified() == fn.timestamp());
+                assertTrue(fl.isDirectory()  == fn.hasAttributes(FileNode.ATTR_DIRECTORY));
+                assertTrue(fl.isHidden()     == fn.hasAttributes(FileNode.ATTR_HIDDEN));
+                assertTrue(fl.canWrite()     != fn.hasAttributes(FileNode.ATTR_READONLY));
+                assertTrue(fl.canExecute()   == fn.hasAttributes(FileNode.ATTR_EXECUTE));
+                assertFalse(fn.hasAttributes(FileNode.ATTR_ROOT));
+                c++;
+            }
+            assertTrue(5 == c);
+
+            // filtering by name does not need any attributes
+            final int[] lazy = new int[1];
+            i = lfs.list(dir, fn -> {
+                if (null != ((LocalFileSystem.FNode)fn).lazy) {
+                    lazy[0]++;
+                }
+                return fn.name().endsWith(".txt");
+            });
+            assertTrue(i.hasNext());
+            FileNode fn = i.next();
+            assertEquals("plain.txt", fn.name());
+            assertTrue(1234 == fn.size());
+            assertTrue(1234567890000L == fn.timestamp());
+            assertFalse(i.hasNext());
+            assertTrue(5 == lazy[0]);
+
+            // vanished directories just list nothing
+            assertFalse(lfs.list(lfs.nodeFromString(new File(tmpDir, "gone").getAbsolutePath()), null).hasNext());
+            assertTrue(ro.setWritable(true));
+        }
+        finally {
+            assertTrue(TestUtils.removeDir(tmpDir, true));
+        }
+    }
+
+    @Test
+    public void testListStreaming() throws IOException {
+        File tmpDir = TestUtils.createTempDir("LocalFileSystemTest.testListStreaming");
+        try {
+            for (int n = 0; n < 100; n++) {
+                TestUtils.fillFile123(new File(tmpDir, "f" + n), n);
+            }
+            LocalFileSystem lfs = new LocalFileSystem(false);
+            FileNode dir = lfs.nodeFromString(tmpDir.getAbsolutePath());
+
+            // abandoning an iteration releases the directory handle
+            for (int n = 0; n < 10000; n++) {
+                Iterator<FileNode> i = lfs.list(dir, null);
+                assertTrue(i.hasNext());
+                assertNotNull(i.next());
+                assertTrue(i instanceof Closeable);
+                ((Closeable)i).close();
+                assertFalse(i.hasNext());
+            }
+
+            // entries the filter drops never get surfaced, the rest streams
+            Iterator<FileNode> i = lfs.list(dir, fn -> fn.name().endsWith("7"));
+            int c = 0;
+            while (i.hasNext()) {
+                FileNode fn = i.next();
+                assertTrue(fn.name().endsWith("7"));
+                assertTrue(Integer.parseInt(fn.name().substring(1)) == fn.size());
+                c++;
+            }
+            assertTrue(10 == c);
+        }
+        finally {
+            assertTrue(TestUtils.removeDir(tmpDir, true));
+        }
+    }
 }
@@ -2,6 +2,8 @@ package de.org.mhahnc.baselib.io;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Test;
@@ -164,6 +166,313 @@ public class MultiplexBlockDeviceTest {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    @Test
+    public void testWriteBlocks() throws Exception {
+        this.bsz = 16;
+
+        for (int[] cfg : new int[][] {
+                { 1, 1,   1 },
+                { 2, 3,   7 },
+                { 4, 5, 100 },
+                { 3, 8,  33 }
+        }) {
+            IncTransFactory     itf  = new IncTransFactory(0);
+            SeqWriteBlockDevice swbd = new SeqWriteBlockDevice();
+
+            MultiplexBlockDevice mbd = new MultiplexBlockDevice(itf, swbd, cfg[0], cfg[1]);
+
+            final int blocks = 1000;
+            byte[] buf = new byte[blocks * this.bsz];
+            for (int num = 0; num < blocks; num++) {
+                Arrays.fill(buf, num * this.bsz, (num + 1) * this.bsz, (byte)num);
+            }
+            for (int num = 0; num < blocks;) {
+                final int count = Math.min(blocks - num, cfg[2]);
+                mbd.writeBlocks(num, count, buf, num * this.bsz);
+                num += count;
+            }
+            // empty ranges are fine, like with any other device
+            mbd.readBlocks(0, 0, buf, 0);
+            mbd.close(false);
+
+            for (int num = 0; num < blocks; num++) {
+                assertTrue(verifyBlock(buf, num * this.bsz, num, false, 0));
+            }
+            assertTrue(blocks == swbd.writes);
+            assertTrue(blocks == itf.transforms.get());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testPipeline() throws Exception {
+        this.bsz = 16;
+
+        MultiplexBlockDevice.__TEST_run_delay = 5;
+
+        for (int[] cfg : new int[][] {
+                { 1, 1, 1 },
+                { 4, 4, 1 },
+                { 4, 4, 2 },
+                { 4, 4, 0 },
+                { 3, 2, 9 }
+        }) {
+            IncTransFactory     itf  = new IncTransFactory(0);
+            SeqWriteBlockDevice swbd = new SeqWriteBlockDevice();
+
+            MultiplexBlockDevice mbd = new MultiplexBlockDevice(itf, swbd, cfg[0], cfg[1],
+                    new MultiplexBlockDevice.Options().maxPending(cfg[2]).spins(0));
+
+            final int blocks = 100;
+            byte[] block = new byte[this.bsz];
+            for (int num = 0; num < blocks; num++) {
+                Arrays.fill(block, (byte)num);
+                mbd.write(num, block, 0);
+            }
+
+            MultiplexBlockDevice.Stats stats = mbd.stats();
+            final int maxPending = 0 == cfg[2] ? cfg[0] : Math.min(cfg[0], cfg[2]);
+            assertTrue(stats.maxDepth <= maxPending);
+            assertTrue(stats.depth    <= maxPending);
+            assertTrue(0 < stats.maxDepth);
+            assertTrue(0 < stats.stalls);
+            assertTrue(0 < stats.stallNanos);
+            assertTrue(blocks / cfg[1] == stats.batches);
+
+            mbd.close(false);
+
+            stats = mbd.stats();
+            assertTrue(0 == stats.depth);
+            assertTrue((blocks + cfg[1] - 1) / cfg[1] == stats.batches);
+            assertTrue(blocks == swbd.writes);
+            assertTrue(blocks == itf.transforms.get());
+            assertFalse(stats.toString().isEmpty());
+        }
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        this.bsz = 16;
+
+        for (int[] cfg : new int[][] {
+                { 1, 1,    1 },
+                { 2, 3,  100 },
+                { 4, 5, 1000 }
+        }) {
+            IncTransFactory     itf  = new IncTransFactory(0);
+            SeqWriteBlockDevice swbd = new SeqWriteBlockDevice() {
+                public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+                    assertTrue(Thread.currentThread().getName().equals("MBD.Writer"));
+                    super.writeBlocks(first, count, buf, ofs);
+                }
+            };
+
+            MultiplexBlockDevice mbd = new MultiplexBlockDevice(itf, swbd, cfg[0], cfg[1],
+                    new MultiplexBlockDevice.Options().writeBehind(true));
+
+            byte[] block = new byte[this.bsz];
+            for (int num = 0; num < cfg[2]; num++) {
+                Arrays.fill(block, (byte)num);
+                mbd.write(num, block, 0);
+            }
+            mbd.close(false);
+
+            assertTrue(cfg[2] == swbd.writes);
+            assertTrue(cfg[2] == itf.transforms.get());
+            assertTrue(0 == mbd.stats().depth);
+        }
+
+        // errors must show up on a later write or the closing
+        for (int failAt : new int[] { 0, 5, 99 }) {
+            SeqWriteBlockDevice swbd = new SeqWriteBlockDevice() {
+                public void write(long num, byte[] block, int ofs) throws IOException {
+                    if (num == failAt) {
+                        throw new IOException("failed at " + num);
+                    }
+                    super.write(num, block, ofs);
+                }
+            };
+            MultiplexBlockDevice mbd = new MultiplexBlockDevice(new IncTransFactory(0),
+                    swbd, 2, 2, new MultiplexBlockDevice.Options().writeBehind(true));
+
+            byte[] block = new byte[this.bsz];
+            IOException err = null;
+            try {
+                for (int num = 0; num < 100; num++) {
+                    Arrays.fill(block, (byte)num);
+                    mbd.write(num, block, 0);
+                }
+                mbd.close(false);
+            }
+            catch (IOException ioe) {
+                err = ioe;
+                mbd.close(true);
+            }
+            assertTrue(null != err);
+            assertTrue(err.getMessage().equals("failed at " + failAt));
+            assertTrue(failAt == swbd.writes);
+        }
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        this.bsz = 16;
+
+        final ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            final int devs = 8;
+            final int blocks = 500;
+            final AtomicInteger errs = new AtomicInteger();
+            final IncTransFactory[] itfs = new IncTransFactory[devs];
+            final SeqWriteBlockDevice[] swbds = new SeqWriteBlockDevice[devs];
+            Thread[] thrds = new Thread[devs];
+            for (int i = 0; i < devs; i++) {
+                final int d = i;
+                itfs [d] = new IncTransFactory(0);
+                swbds[d] = new SeqWriteBlockDevice();
+                thrds[d] = new Thread(() -> {
+                    try {
+                        MultiplexBlockDevice mbd = new MultiplexBlockDevice(itfs[d], swbds[d], 1 + d % 4, 1 + d,
+                                new MultiplexBlockDevice.Options()
+                                    .executor(exec)
+                                    .writeBehind(1 == (d & 1)));
+                        byte[] block = new byte[this.bsz];
+                        for (int num = 0; num < blocks; num++) {
+                            Arrays.fill(block, (byte)num);
+                            mbd.write(num, block, 0);
+                        }
+                        mbd.close(false);
+                    }
+                    catch (Throwable err) {
+                        err.printStackTrace();
+                        errs.incrementAndGet();
+                    }
+                });
+            }
+            for (Thread thrd : thrds) {
+                thrd.start();
+            }
+            for (Thread thrd : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thrd.getName().startsWith("MBD."));
+            }
+            for (Thread thrd : thrds) {
+                thrd.join();
+            }
+            assertTrue(0 == errs.get());
+            for (int i = 0; i < devs; i++) {
+                assertTrue(blocks == swbds[i].writes);
+                assertTrue(blocks == itfs[i].transforms.get());
+            }
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransformBatch() throws Exception {
+        this.bsz = 16;
+
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger batchBlocks = new AtomicInteger();
+        IncTransFactory itf = new IncTransFactory(0) {
+            public Filter createWrite() {
+                final Filter f = super.createWrite();
+                return new Filter() {
+                    public long map(long num) {
+                        return f.map(num);
+                    }
+                    public void transform(long num, byte[] block, int ofs) throws IOException {
+                        fail();
+                    }
+                    public void transformBatch(long[] nums, int count,
+                            byte[] buf, int ofs, int blockSize) throws IOException {
+                        batches.incrementAndGet();
+                        batchBlocks.addAndGet(count);
+                        for (int i = 0; i < count; i++) {
+                            f.transform(nums[i], buf, ofs + i * blockSize);
+                        }
+                    }
+                };
+            }
+        };
+        SeqWriteBlockDevice swbd = new SeqWriteBlockDevice();
+
+        MultiplexBlockDevice mbd = new MultiplexBlockDevice(itf, swbd, 2, 8);
+
+        final int blocks = 100;
+        byte[] block = new byte[this.bsz];
+        for (int num = 0; num < blocks; num++) {
+            Arrays.fill(block, (byte)num);
+            mbd.write(num, block, 0);
+        }
+        mbd.close(false);
+
+        assertTrue(blocks == swbd.writes);
+        assertTrue(blocks == itf.transforms.get());
+        assertTrue(blocks == batchBlocks.get());
+        assertTrue((blocks + 7) / 8 == batches.get());
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        this.bsz = 32;
+
+        for (int[] cfg : new int[][] {
+                { 1, 1,   1 },
+                { 2, 1,  10 },
+                { 3, 4, 100 },
+                { 4, 7, 333 }
+        }) {
+            final int bufcount = cfg[0];
+            final int bufsize  = cfg[1];
+            final int blocks   = cfg[2];
+
+            // the device holds the blocks in their transformed state
+            BlockDeviceImpl.MemoryBlockDevice mbdev = new BlockDeviceImpl.MemoryBlockDevice(
+                    this.bsz, blocks, false, false);
+            for (int num = 0; num < blocks; num++) {
+                Arrays.fill(mbdev.buffer(), num * this.bsz, (num + 1) * this.bsz,
+                            (byte)(num + IncTransFactory.INC));
+            }
+
+            IncTransFactory itf = new IncTransFactory(0);
+            MultiplexBlockDevice mbd = new MultiplexBlockDevice(itf, mbdev, bufcount, bufsize,
+                    new MultiplexBlockDevice.Options().readAhead(true));
+
+            // sequential
+            for (int num = 0; num < blocks; num++) {
+                byte[] blk = makeBlock(~num);
+                mbd.read(num, blk, TOFS);
+                assertTrue(verifyBlock(blk, TOFS, num, true, 0));
+            }
+            assertTrue(blocks == itf.reads.get());
+            assertTrue(0 == itf.callerReads.get());
+
+            // random access
+            for (int num : new int[] { blocks - 1, 0, blocks >> 1, 0, blocks - 1 }) {
+                byte[] blk = makeBlock(~num);
+                mbd.read(num, blk, TOFS);
+                assertTrue(verifyBlock(blk, TOFS, num, true, 0));
+            }
+
+            // write something, which must show up when reading it again
+            byte[] blk = makeBlock(0x55);
+            final long wnum = blocks >> 1;
+            mbd.write(wnum, blk, TOFS);
+            byte[] buf = new byte[blocks * this.bsz];
+            mbd.readBlocks(0, blocks, buf, 0);
+            for (int num = 0; num < blocks; num++) {
+                assertTrue(verifyBlock(buf, num * this.bsz, wnum == num ? 0x55 : num, false, 0));
+            }
+
+            mbd.close(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     static class IncTransFactory implements BlockDevice.Filter.Factory {
         final static int INC = 3;
 
@@ -174,8 +483,22 @@ public class MultiplexBlockDeviceTest {
         }
 
         public Filter createRead() {
-            fail();
-            return null;
+            return new Filter() {
+                public void transform(
+                        long num, byte[] block, int ofs) throws IOException {
+                    for (int i = ofs, end = ofs + IncTransFactory.this.blockSize;
+                         i < end; i++) {
+                        block[i] = (byte)(block[i] - INC);
+                    }
+                    IncTransFactory.this.reads.incrementAndGet();
+                    if (!Thread.currentThread().getName().startsWith("MBD.")) {
+                        IncTransFactory.this.callerReads.incrementAndGet();
+                    }
+                }
+                public long map(long num) {
+                    return num;
+                }
+            };
         }
 
         public Filter createWrite() {
@@ -205,7 +528,9 @@ public class MultiplexBlockDeviceTest {
         }
         int blockSize = -1;
 
-        AtomicInteger transforms = new AtomicInteger();
+        AtomicInteger transforms  = new AtomicInteger();
+        AtomicInteger reads       = new AtomicInteger();
+        AtomicInteger callerReads = new AtomicInteger();
     }
 
     class SeqWriteBlockDevice implements BlockDevice {
@@ -0,0 +1,154 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OverlayBlockDeviceTest {
+    final static int BSZ = 32;
+    final static int BLOCKS = 1000;
+
+    static BlockDeviceImpl.MemoryBlockDevice makeBase(boolean readOnly) throws IOException {
+        byte[] buf = new byte[BLOCKS * BSZ];
+        for (int num = 0; num < BLOCKS; num++) {
+            Arrays.fill(buf, num * BSZ, (num + 1) * BSZ, (byte)num);
+        }
+        return new BlockDeviceImpl.MemoryBlockDevice(BSZ, buf, readOnly, false);
+    }
+
+    static void verify(BlockDevice bdev, long num, int val) throws IOException {
+        byte[] block = new byte[BSZ];
+        bdev.read(num, block, 0);
+        for (byte b : block) {
+            assertTrue(b == (byte)val);
+        }
+    }
+
+    static void fill(BlockDevice bdev, long num, int val) throws IOException {
+        byte[] block = new byte[BSZ];
+        Arrays.fill(block, (byte)val);
+        bdev.write(num, block, 0);
+    }
+
+    @Test
+    public void test0() throws IOException {
+        for (boolean side : new boolean[] { false, true }) {
+            BlockDeviceImpl.MemoryBlockDevice base = makeBase(true);
+            byte[] orig = base.buffer().clone();
+
+            OverlayBlockDevice obd = new OverlayBlockDevice(base, side ?
+                    new BlockDeviceImpl.MemoryBlockDevice(BSZ, 600, false, false) : null);
+            assertFalse(obd.readOnly());
+            assertTrue(BLOCKS == obd.size());
+            assertTrue(BSZ == obd.blockSize());
+
+            fill(obd, 10, 0xaa);
+            verify(obd, 10, 0xaa);
+            verify(obd, 11, 11);
+            assertTrue(1 == obd.deltaBlocks());
+            obd.write(11, null, 0);
+            verify(obd, 11, 11);
+            assertTrue(1 == obd.deltaBlocks());
+
+            assertTrue(1 == obd.snapshot());
+            fill(obd, 10, 0xbb);
+            fill(obd, 12, 0xbb);
+            verify(obd, 10, 0xbb);
+            verify(obd, 12, 0xbb);
+            assertTrue(3 == obd.deltaBlocks());
+
+            assertTrue(2 == obd.snapshot());
+            for (int num = 0; num < 500; num++) {
+                fill(obd, num, 0xcc);
+            }
+            verify(obd, 499, 0xcc);
+            obd.rollback();
+            verify(obd, 10, 0xbb);
+            verify(obd, 12, 0xbb);
+            verify(obd, 499, 499);
+
+            obd.rollback();
+            verify(obd, 10, 0xaa);
+            verify(obd, 12, 12);
+            assertTrue(1 == obd.deltaBlocks());
+            try {
+                obd.rollback();
+                fail();
+            }
+            catch (IOException expected) {
+            }
+
+            obd.discard();
+            verify(obd, 10, 10);
+            assertTrue(0 == obd.deltaBlocks());
+
+            // base is read-only, so committing must fail
+            fill(obd, 5, 0x11);
+            try {
+                obd.commit();
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            obd.close(false);
+            assertTrue(Arrays.equals(orig, base.buffer()));
+        }
+    }
+
+    @Test
+    public void testCommit() throws IOException {
+        BlockDeviceImpl.MemoryBlockDevice base = makeBase(false);
+        OverlayBlockDevice obd = new OverlayBlockDevice(base);
+
+        fill(obd, 1, 0x21);
+        obd.snapshot();
+        fill(obd, 1, 0x22);
+        fill(obd, 2, 0x22);
+        obd.snapshot();
+        fill(obd, 3, 0x23);
+
+        verify(base, 1, 1);
+        obd.commit();
+        assertTrue(0 == obd.snapshots());
+        assertTrue(0 == obd.deltaBlocks());
+        verify(base, 1, 0x22);
+        verify(base, 2, 0x22);
+        verify(base, 3, 0x23);
+        verify(base, 4, 4);
+        obd.close(false);
+    }
+
+    @Test
+    public void testStoreFull() throws IOException {
+        OverlayBlockDevice obd = new OverlayBlockDevice(makeBase(true),
+                new BlockDeviceImpl.MemoryBlockDevice(BSZ, 3, false, false));
+        fill(obd, 0, 1);
+        fill(obd, 1, 1);
+        fill(obd, 2, 1);
+        fill(obd, 2, 2);
+        try {
+            fill(obd, 3, 1);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        verify(obd, 3, 3);
+        obd.snapshot();
+        try {
+            fill(obd, 1, 5);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        verify(obd, 1, 1);
+        obd.discard();
+        fill(obd, 1, 5);
+        verify(obd, 1, 5);
+        obd.close(true);
+    }
+}
@@ -0,0 +1,153 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReblockingBlockDeviceTest {
+    static class CountingBlockDevice extends BlockDeviceImpl.MemoryBlockDevice {
+        public CountingBlockDevice(int blockSize, long size) throws IOException {
+            super(blockSize, size, false, false);
+        }
+        public void read(long num, byte[] block, int ofs) throws IOException {
+            this.reads++;
+            super.read(num, block, ofs);
+        }
+        public void write(long num, byte[] block, int ofs) throws IOException {
+            this.writes++;
+            super.write(num, block, ofs);
+        }
+        public void readBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            this.reads += count;
+            super.readBlocks(first, count, buf, ofs);
+        }
+        public void writeBlocks(long first, int count, byte[] buf, int ofs) throws IOException {
+            this.writes += count;
+            super.writeBlocks(first, count, buf, ofs);
+        }
+        int reads;
+        int writes;
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        for (int[] cfg : new int[][] {
+                { 16, 64 },
+                { 16, 16 },
+                { 64, 16 },
+                {  8, 128 }
+        }) {
+            final int bsz  = cfg[0];
+            final int pbsz = cfg[1];
+            final int pblocks = 48;
+            CountingBlockDevice cnt = new CountingBlockDevice(pbsz, pblocks);
+            Random rnd = new Random(bsz * pbsz);
+            rnd.nextBytes(cnt.buffer());
+            byte[] ref = cnt.buffer().clone();
+
+            ReblockingBlockDevice rbd = new ReblockingBlockDevice(cnt, bsz);
+            final int blocks = (int)rbd.size();
+            assertTrue(blocks * bsz == pblocks * pbsz);
+            assertTrue(bsz == rbd.blockSize());
+            assertFalse(rbd.readOnly());
+            assertFalse(rbd.writeOnly());
+            assertFalse(rbd.serialWrite());
+
+            byte[] buf = new byte[ref.length + 1];
+            for (int i = 0; i < 2000; i++) {
+                final int count = 1 + rnd.nextInt(Math.min(blocks, 3 * Math.max(1, pbsz / bsz)));
+                final int first = rnd.nextInt(blocks - count + 1);
+                if (rnd.nextBoolean()) {
+                    rnd.nextBytes(buf);
+                    System.arraycopy(buf, 1, ref, first * bsz, count * bsz);
+                    rbd.writeBlocks(first, count, buf, 1);
+                }
+                else {
+                    rbd.readBlocks(first, count, buf, 1);
+                    for (int j = 0; j < count * bsz; j++) {
+                        assertTrue(buf[1 + j] == ref[first * bsz + j]);
+                    }
+                }
+            }
+            rbd.close(false);
+            assertTrue(Arrays.equals(ref, cnt.buffer()));
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws IOException {
+        CountingBlockDevice cnt = new CountingBlockDevice(4096, 16);
+        ReblockingBlockDevice rbd = new ReblockingBlockDevice(cnt, 512);
+        assertTrue(128 == rbd.size());
+
+        byte[] block = new byte[512];
+        for (int num = 0; num < 128; num++) {
+            Arrays.fill(block, (byte)num);
+            rbd.write(num, block, 0);
+        }
+        assertTrue(16 == cnt.writes);
+        assertTrue(0 == cnt.reads);
+
+        // a partial block needs to be completed with what's on the device
+        Arrays.fill(block, (byte)0xff);
+        rbd.write(9, block, 0);
+        assertTrue(16 == cnt.writes);
+
+        // null blocks only get checked
+        rbd.write(10, null, 0);
+        rbd.writeBlocks(0, 128, null, 0);
+        try {
+            rbd.writeBlocks(127, 2, null, 0);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        assertTrue(16 == cnt.writes);
+        rbd.close(false);
+        assertTrue(17 == cnt.writes);
+        assertTrue(1 == cnt.reads);
+        for (int num = 0; num < 128; num++) {
+            assertTrue(cnt.buffer()[num * 512] == (9 == num ? (byte)0xff : (byte)num));
+        }
+    }
+
+    @Test
+    public void testSerial() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ReblockingBlockDevice rbd = new ReblockingBlockDevice(
+                new BlockDeviceImpl.OutputStreamBlockDevice(baos, 4, 64, true), 16);
+        assertTrue(rbd.serialWrite());
+        assertTrue(rbd.writeOnly());
+        assertTrue(16 == rbd.size());
+
+        byte[] buf = new byte[16 * 11];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte)(1 + i / 16);
+        }
+        rbd.write(0, buf, 0);
+        rbd.writeBlocks(1, 9, buf, 16);
+        rbd.write(10, buf, 160);
+        rbd.close(false);
+
+        // the last physical block got padded with zeros
+        byte[] data = baos.toByteArray();
+        assertTrue(3 * 64 == data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertTrue(data[i] == (i < buf.length ? buf[i] : 0));
+        }
+
+        try {
+            new ReblockingBlockDevice(new BlockDeviceImpl.NullWriteDevice(48), 32);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+}
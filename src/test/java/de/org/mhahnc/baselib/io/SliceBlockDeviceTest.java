@@ -0,0 +1,80 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SliceBlockDeviceTest {
+    final static int BSZ = 16;
+
+    @Test
+    public void test0() throws IOException {
+        BlockDeviceImpl.MemoryBlockDevice base = new BlockDeviceImpl.MemoryBlockDevice(
+                BSZ, 100, false, false);
+        SliceBlockDevice part1 = new SliceBlockDevice(base,  0, 30);
+        SliceBlockDevice part2 = new SliceBlockDevice(base, 30, 70);
+        assertTrue(30 == part1.size());
+        assertTrue(70 == part2.size());
+        assertTrue(30 == part2.first());
+        assertTrue(BSZ == part2.blockSize());
+        assertFalse(part2.readOnly());
+        assertFalse(part2.writeOnly());
+        assertFalse(part2.serialWrite());
+
+        byte[] buf = new byte[BSZ * 70];
+        Arrays.fill(buf, (byte)1);
+        part1.writeBlocks(0, 30, buf, 0);
+        Arrays.fill(buf, (byte)2);
+        part2.writeBlocks(0, 69, buf, 0);
+        part2.write(69, buf, 0);
+
+        for (int num = 0; num < 100; num++) {
+            assertTrue(base.buffer()[num * BSZ] == (num < 30 ? 1 : 2));
+        }
+        part1.read(29, buf, 0);
+        part2.readBlocks(10, 5, buf, BSZ);
+        assertTrue(1 == buf[0]);
+        assertTrue(2 == buf[BSZ]);
+
+        for (long[] bad : new long[][] { { 30, 1 }, { -1, 1 }, { 25, 6 } }) {
+            try {
+                part1.readBlocks(bad[0], (int)bad[1], buf, 0);
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            try {
+                part1.writeBlocks(bad[0], (int)bad[1], buf, 0);
+                fail();
+            }
+            catch (IOException expected) {
+            }
+        }
+        try {
+            new SliceBlockDevice(base, 50, 51);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+
+        // the underlying device stays open
+        part1.close(false);
+        part2.close(false);
+        base.read(0, buf, 0);
+
+        SliceBlockDevice ro = new SliceBlockDevice(new BlockDeviceImpl.MemoryBlockDevice(
+                BSZ, 10, true, false), 1, 2);
+        assertTrue(ro.readOnly());
+        try {
+            ro.write(0, buf, 0);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SparseBlockDeviceTest {
+    final static int BSZ = 64;
+
+    @Test
+    public void test0() throws IOException {
+        final int blocks = 100000;   // more than one bitmap page
+        BlockDeviceImpl.MemoryBlockDevice mbd = new BlockDeviceImpl.MemoryBlockDevice(
+                BSZ, blocks, false, false);
+        final int[] writes = new int[1];
+        BlockDevice hook = new BlockDeviceImpl.HookBlockDevice(mbd) {
+            protected boolean onRead(long num) {
+                fail();
+                return true;
+            }
+            protected boolean onWrite(long num) {
+                writes[0]++;
+                return true;
+            }
+        };
+        SparseBlockDevice sbd = new SparseBlockDevice(new BlockDeviceImpl.HookBlockDevice(hook) {
+            protected boolean onRead(long num) {
+                return true;
+            }
+            protected boolean onWrite(long num) {
+                return true;
+            }
+        });
+        assertTrue(BSZ == sbd.blockSize());
+        assertTrue(blocks == sbd.size());
+        assertFalse(sbd.serialWrite());
+
+        byte[] zero = new byte[BSZ * 10];
+        for (int num = 0; num < blocks; num += 10) {
+            sbd.writeBlocks(num, 10, zero, 0);
+        }
+        assertTrue(0 == writes[0]);
+        assertTrue(blocks == sbd.skipped());
+        assertTrue(0 == sbd.allocated());
+
+        // reading unallocated blocks must not touch the device at all
+        byte[] buf = new byte[BSZ * 10];
+        Arrays.fill(buf, (byte)1);
+        sbd.readBlocks(70000, 10, buf, 0);
+        assertTrue(Arrays.equals(zero, buf));
+
+        byte[] data = new byte[BSZ * 5];
+        Arrays.fill(data, (byte)0x55);
+        Arrays.fill(data, BSZ, BSZ * 3, (byte)0);
+        sbd.writeBlocks(65535, 5, data, 0);
+        assertTrue(3 == writes[0]);
+        assertTrue(3 == sbd.allocated());
+        assertTrue( sbd.isAllocated(65535));
+        assertFalse(sbd.isAllocated(65536));
+        assertTrue( sbd.isAllocated(65538));
+        assertTrue( sbd.isAllocated(65539));
+        for (long num : new long[] { -1L, blocks }) {
+            try {
+                sbd.isAllocated(num);
+                fail();
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+
+        // zeros over allocated blocks must really get written
+        sbd.write(65539, zero, 0);
+        assertTrue(4 == writes[0]);
+        assertTrue(3 == sbd.allocated());
+
+        sbd.close(false);
+        byte[] expect = new byte[blocks * BSZ];
+        Arrays.fill(expect, 65535 * BSZ, 65536 * BSZ, (byte)0x55);
+        Arrays.fill(expect, 65538 * BSZ, 65539 * BSZ, (byte)0x55);
+        assertTrue(Arrays.equals(expect, mbd.buffer()));
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        final int blocks = 300;
+        BlockDeviceImpl.MemoryBlockDevice mbd = new BlockDeviceImpl.MemoryBlockDevice(
+                BSZ, blocks, false, false);
+        SparseBlockDevice sbd = new SparseBlockDevice(mbd);
+        byte[] ref = new byte[blocks * BSZ];
+        byte[] buf = new byte[BSZ * 8];
+        Random rnd = new Random(0xbeef);
+        for (int i = 0; i < 3000; i++) {
+            final int count = 1 + rnd.nextInt(8);
+            final int first = rnd.nextInt(blocks - count + 1);
+            if (rnd.nextBoolean()) {
+                for (int j = 0; j < count; j++) {
+                    Arrays.fill(buf, j * BSZ, (j + 1) * BSZ,
+                            rnd.nextBoolean() ? 0 : (byte)rnd.nextInt());
+                }
+                System.arraycopy(buf, 0, ref, first * BSZ, count * BSZ);
+                sbd.writeBlocks(first, count, buf, 0);
+            }
+            else {
+                sbd.readBlocks(first, count, buf, 0);
+                for (int j = 0; j < count * BSZ; j++) {
+                    assertTrue(buf[j] == ref[first * BSZ + j]);
+                }
+            }
+        }
+        sbd.close(false);
+        assertTrue(Arrays.equals(ref, mbd.buffer()));
+        assertTrue(0 < sbd.skipped());
+
+        try {
+            new SparseBlockDevice(new BlockDeviceImpl.NullWriteDevice(BSZ));
+            fail();
+        }
+        catch (IllegalArgumentException iae) {
+        }
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        File fl = new File(System.getProperty("java.io.tmpdir"), "SparseBlockDeviceTest_testFile");
+        fl.delete();
+        final long blocks = 1L << 20;   // 64MB, mostly holes
+        RandomAccessFile raf = new RandomAccessFile(fl, "rw");
+        try {
+            raf.setLength(blocks * BSZ);
+            SparseBlockDevice sbd = new SparseBlockDevice(new BlockDeviceImpl.FileBlockDevice(
+                    raf, BSZ, -1L, false, false));
+            byte[] buf = new byte[BSZ * 256];
+            for (long num = 0; num < blocks; num += 256) {
+                if (0 == num % (256 * 256)) {
+                    buf[0] = 1;
+                    sbd.writeBlocks(num, 256, buf, 0);
+                    buf[0] = 0;
+                }
+                else {
+                    sbd.writeBlocks(num, 256, buf, 0);
+                }
+            }
+            assertTrue(16 == sbd.allocated());
+            assertTrue(blocks - 16 == sbd.skipped());
+            sbd.close(false);
+            assertTrue(blocks * BSZ == fl.length());
+        }
+        finally {
+            raf.close();
+            assertTrue(fl.delete());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.org.mhahnc.baselib.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class StripedBlockDeviceTest {
+    final static int BSZ = 16;
+
+    @Test
+    public void test0() throws IOException {
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            for (int[] cfg : new int[][] {
+                    { 1, 1 },
+                    { 2, 1 },
+                    { 3, 4 },
+                    { 4, 7 }
+            }) {
+                for (boolean parallel : new boolean[] { false, true }) {
+                    final int n = cfg[0];
+                    final int stripe = cfg[1];
+                    BlockDeviceImpl.MemoryBlockDevice[] mems = new BlockDeviceImpl.MemoryBlockDevice[n];
+                    for (int i = 0; i < n; i++) {
+                        // uneven sizes, the smallest one rules
+                        mems[i] = new BlockDeviceImpl.MemoryBlockDevice(BSZ, 100 + i * 3, false, false);
+                    }
+                    StripedBlockDevice sbd = new StripedBlockDevice(mems, stripe,
+                            parallel ? exec : null);
+                    final long size = 100 / stripe * stripe * n;
+                    assertTrue(size == sbd.size());
+                    assertTrue(BSZ == sbd.blockSize());
+                    assertFalse(sbd.readOnly());
+                    assertFalse(sbd.writeOnly());
+                    assertFalse(sbd.serialWrite());
+
+                    byte[] ref = new byte[(int)size * BSZ];
+                    byte[] buf = new byte[ref.length];
+                    Random rnd = new Random(n * 100 + stripe);
+                    for (int i = 0; i < 500; i++) {
+                        final int count = 1 + rnd.nextInt(Math.min(40, (int)size));
+                        final int first = rnd.nextInt((int)size - count + 1);
+                        if (rnd.nextBoolean()) {
+                            rnd.nextBytes(buf);
+                            System.arraycopy(buf, 3, ref, first * BSZ, count * BSZ);
+                            if (1 == count) {
+                                sbd.write(first, buf, 3);
+                            }
+                            else {
+                                sbd.writeBlocks(first, count, buf, 3);
+                            }
+                        }
+                        else {
+                            if (1 == count) {
+                                sbd.read(first, buf, 5);
+                            }
+                            else {
+                                sbd.readBlocks(first, count, buf, 5);
+                            }
+                            for (int j = 0; j < count * BSZ; j++) {
+                                assertTrue(buf[5 + j] == ref[first * BSZ + j]);
+                            }
+                        }
+                    }
+
+                    // check the actual layout on the members
+                    for (long num = 0; num < size; num++) {
+                        final int m = (int)(num / stripe % n);
+                        final long mnum = num / stripe / n * stripe + num % stripe;
+                        for (int j = 0; j < BSZ; j++) {
+                            assertTrue(ref[(int)num * BSZ + j] ==
+                                       mems[m].buffer()[(int)mnum * BSZ + j]);
+                        }
+                    }
+
+                    try {
+                        sbd.readBlocks(size - 1, 2, buf, 0);
+                        fail();
+                    }
+                    catch (IOException expected) {
+                    }
+                    sbd.close(false);
+                }
+            }
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testMismatch() throws IOException {
+        try {
+            new StripedBlockDevice(new BlockDevice[] {
+                    new BlockDeviceImpl.MemoryBlockDevice(BSZ    , 10, false, false),
+                    new BlockDeviceImpl.MemoryBlockDevice(BSZ * 2, 10, false, false)
+            }, 1, null);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        try {
+            new StripedBlockDevice(new BlockDevice[0], 1, null);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+
+        StripedBlockDevice sbd = new StripedBlockDevice(new BlockDevice[] {
+                new BlockDeviceImpl.MemoryBlockDevice(BSZ, 10, false, false),
+                new BlockDeviceImpl.MemoryBlockDevice(BSZ, 10, true , false)
+        }, 2, null);
+        assertTrue(sbd.readOnly());
+        byte[] buf = new byte[BSZ * 4];
+        Arrays.fill(buf, (byte)1);
+        try {
+            sbd.writeBlocks(0, 4, buf, 0);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        sbd.close(true);
+    }
+}
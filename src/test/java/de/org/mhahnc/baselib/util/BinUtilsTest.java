@@ -325,4 +325,23 @@ public class BinUtilsTest {
         assertTrue(0 == BinUtils.u16ToInt((short)0));
         assertTrue(0x0ffffL == BinUtils.u16ToInt((short)-1));
     }
+
+    @Test
+    public void testCheckFillValue() {
+        byte[] buf = new byte[1000];
+        assertTrue(BinUtils.checkFillValue(buf, 0, buf.length, (byte)0));
+        assertTrue(BinUtils.checkFillValue(buf, 5, 0, (byte)1));
+        assertTrue(!BinUtils.checkFillValue(buf, 0, 1, (byte)1));
+        Arrays.fill(buf, 100, 200, (byte)0xcc);
+        assertTrue(BinUtils.checkFillValue(buf, 100, 100, (byte)0xcc));
+        assertTrue(!BinUtils.checkFillValue(buf, 100, 101, (byte)0xcc));
+        assertTrue(!BinUtils.checkFillValue(buf,  99, 101, (byte)0xcc));
+        assertTrue(!BinUtils.checkFillValue(buf, 0, buf.length, (byte)0));
+        for (int i = 0; i < buf.length; i++) {
+            Arrays.fill(buf, (byte)7);
+            buf[i] = 8;
+            assertTrue(!BinUtils.checkFillValue(buf, 0, buf.length, (byte)7));
+            assertTrue(BinUtils.checkFillValue(buf, i + 1, buf.length - i - 1, (byte)7));
+        }
+    }
 }
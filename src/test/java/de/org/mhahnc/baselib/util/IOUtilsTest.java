@@ -1,7 +1,10 @@
 package de.org.mhahnc.baselib.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import org.junit.Test;
@@ -14,6 +17,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
 public class IOUtilsTest extends TestUtils {
     @Test
@@ -27,6 +31,83 @@ public class IOUtilsTest extends TestUtils {
         assertTrue(checkPattern123(data2, 0, data2.length));
     }
 
+    @Test
+    public void testReadStreamBytesHint() throws IOException {
+        byte[] data = new byte[100000];
+        fillPattern123(data, 0, data.length);
+        for (long hint : new long[] { -1L, 0L, 1L, 4096L, 99999L, 100000L, 100001L, 1000000L,
+                                     Integer.MAX_VALUE, Long.MAX_VALUE }) {
+            byte[] data2 = IOUtils.readStreamBytes(new ByteArrayInputStream(data), hint);
+            assertTrue(BinUtils.arraysEquals(data, data2));
+        }
+        assertTrue(0 == IOUtils.readStreamBytes(new ByteArrayInputStream(new byte[0]), 10L).length);
+
+        File fl = createTempFile("ioutilstest", data.length);
+        try {
+            byte[] data2 = IOUtils.readStreamBytes(new FileInputStream(fl));
+            assertTrue(checkPattern123(data2, 0, data2.length));
+            assertTrue(data.length == data2.length);
+            assertTrue(BinUtils.arraysEquals(data2, MiscUtils.readFile(fl)));
+        }
+        finally {
+            assertTrue(fl.delete());
+        }
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        final int defsz = IOUtils.copyBufferSize();
+        for (int bufsz : new int[] { IOUtils.COPY_BUFSIZE_MIN, IOUtils.COPY_BUFSIZE_MAX }) {
+            IOUtils.setCopyBufferSize(bufsz);
+            assertTrue(bufsz == IOUtils.copyBufferSize());
+            for (int len : new int[] { 0, 1, 65537, 3000000 }) {
+                byte[] data = new byte[len];
+                fillPattern123(data, 0, len);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                assertTrue(IOUtils.copy(new ByteArrayInputStream(data), baos, true));
+                assertTrue(BinUtils.arraysEquals(data, baos.toByteArray()));
+
+                // file to file goes through the channels
+                File src = createTempFile("ioutilstest", len);
+                File dst = createTempFile("ioutilstest", -1);
+                File dst2 = createTempFile("ioutilstest", -1);
+                try {
+                    assertTrue(IOUtils.copy(new FileInputStream(src), new FileOutputStream(dst), true));
+                    assertTrue(len == dst.length());
+                    assertTrue(len == IOUtils.copy(src, dst2));
+                    byte[] data2 = MiscUtils.readFile(dst);
+                    assertTrue(checkPattern123(data2, 0, data2.length));
+                    assertTrue(BinUtils.arraysEquals(data2, MiscUtils.readFile(dst2)));
+                }
+                finally {
+                    assertTrue(src.delete());
+                    assertTrue(dst.delete());
+                    assertTrue(dst2.delete());
+                }
+            }
+        }
+        // a partially consumed file stream continues where it left off
+        File src = createTempFile("ioutilstest", 10000);
+        File dst = createTempFile("ioutilstest", -1);
+        try {
+            FileInputStream fis = new FileInputStream(src);
+            assertTrue(1000 == fis.skip(1000));
+            IOUtils.copy(fis, new FileOutputStream(dst), true);
+            assertTrue(9000 == dst.length());
+        }
+        finally {
+            assertTrue(src.delete());
+            assertTrue(dst.delete());
+        }
+        try {
+            IOUtils.setCopyBufferSize(IOUtils.COPY_BUFSIZE_MAX + 1);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        IOUtils.setCopyBufferSize(defsz);
+    }
+
     @Test
     public void testGetRoot() {
         File[] roots = File.listRoots();